@@ -0,0 +1,195 @@
+package FCRLM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+/**
+ * Checks the ExpansionServer on a SyntheticIndex: a query is answered with its
+ * expansion and hits; a malformed query, a parameter out of range, and a badly
+ * percent-encoded form body, with 400, counted as invalid and not as failed; a
+ * DELETE with 405; and with one query processed at a time and one waiting, a
+ * further query, and the waiting one once past server.queueTimeoutMs, with 503. <p>
+ * The worker thread of the server is held by a task of the check, so that the queue
+ * is full when the further query comes. Exits with status 1 if a check fails.
+ * @author dwaipayan
+ */
+
+public class ExpansionServerCheck {
+
+    static final long QUEUE_TIMEOUT_MS = 300;
+
+    String  base;
+    int     checks, failures;
+
+    private void check(String what, boolean ok) {
+        checks++;
+        if(!ok) {
+            failures++;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * The status and the body of a GET request.
+     */
+    private static class Response {
+        int     status;
+        String  body;
+    }
+
+    private Response get(String path) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        InputStream in = (response.status < 400) ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if(null != in)
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[4096];
+                for (int n; (n = stream.read(buffer)) > 0; )
+                    body.write(buffer, 0, n);
+            }
+        response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        connection.disconnect();
+        return response;
+    }
+
+    private Response expand(String text, String params) throws IOException {
+        return get("/expand?q=" + URLEncoder.encode(text, "UTF-8") + params);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Path dir = Files.createTempDirectory("fcrlm-server");
+        Properties prop = SyntheticIndex.create(dir, 2000, 42L,
+            System.getProperty("stopFilePath", "src/resources/smart-stopwords"));
+        prop.setProperty("numFeedbackDocs", "10");
+        prop.setProperty("numFeedbackTermsTopical", "20");
+        prop.setProperty("numFeedbackTermsCausal", "20");
+        prop.setProperty("metrics", "false");
+        prop.setProperty("server.port", "0");
+        prop.setProperty("server.maxConcurrent", "1");
+        prop.setProperty("server.maxQueued", "1");
+        prop.setProperty("server.queueTimeoutMs", Long.toString(QUEUE_TIMEOUT_MS));
+
+        /* the pipeline logs each query on stdout */
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+        ExpansionServer server = new ExpansionServer(prop);
+        server.server.start();
+
+        ExpansionServerCheck checker = new ExpansionServerCheck();
+        checker.base = "http://localhost:" + server.server.getAddress().getPort();
+        try {
+            checker.run(server);
+        } finally {
+            server.shutdown();
+            System.setOut(stdout);
+        }
+        System.out.println("ExpansionServerCheck: " + checker.checks + " checks, " + checker.failures + " failed");
+        System.exit((checker.failures > 0) ? 1 : 0);
+    }
+
+    private void run(final ExpansionServer server) throws Exception {
+
+        Response response = expand(SyntheticIndex.TOPICS[1], "&hits=5&qid=t1");
+        check("a query is served: " + response.status + " " + response.body, 200 == response.status);
+        if(200 == response.status) {
+            JSONObject json = new JSONObject(response.body);
+            check("the query has its qid", "t1".equals(json.getString("qid")));
+            check("EQ2 has terms", json.getJSONArray("eq2").length() > 0);
+            check("5 hits are returned", 5 == json.getJSONArray("hits").length());
+        }
+
+        /* query syntax: parsed, or a 400 for a malformed one */
+        for (String text : new String[] {"income = tax", "oil > gas prices", "a < b war"}) {
+            response = expand(text, "");
+            check("'" + text + "' is served: " + response.status + " " + response.body, 200 == response.status);
+        }
+        for (String text : new String[] {"(ajmal kasab", "kasab:", "ajmal AND"}) {
+            response = expand(text, "");
+            check("malformed '" + text + "' gets a 400: " + response.status + " " + response.body, 400 == response.status);
+        }
+        response = expand(SyntheticIndex.TOPICS[1], "&hits=-1");
+        check("hits=-1 gets a 400: " + response.status, 400 == response.status);
+        response = get("/expand");
+        check("no q gets a 400: " + response.status, 400 == response.status);
+        /* the request URI is checked by the HttpServer; a form body is not */
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + "/expand").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("q=%zz".getBytes(StandardCharsets.UTF_8));
+        }
+        check("bad percent-encoding gets a 400: " + connection.getResponseCode(), 400 == connection.getResponseCode());
+        connection.disconnect();
+        check("the invalid queries are not failed", 0 == server.failed.get());
+        check("the invalid queries are counted: " + server.invalid.get(), 6 == server.invalid.get());
+        connection = (HttpURLConnection) new URL(base + "/expand?q=kasab").openConnection();
+        connection.setRequestMethod("DELETE");
+        check("DELETE gets a 405: " + connection.getResponseCode(), 405 == connection.getResponseCode());
+        connection.disconnect();
+        check("... not counted as invalid", 6 == server.invalid.get());
+
+        /* the worker thread held: one query waits, the next one is rejected at once */
+        final CountDownLatch held = new CountDownLatch(1), release = new CountDownLatch(1);
+        server.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        held.await();
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        Future<Response> waiting = client.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return expand(SyntheticIndex.TOPICS[2], "");
+            }
+        });
+        while(server.executor.getQueue().isEmpty())
+            Thread.sleep(5);
+        long start = System.nanoTime();
+        response = expand(SyntheticIndex.TOPICS[3], "");
+        check("a query beyond the queue gets a 503: " + response.status, 503 == response.status);
+        check("... at once", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT_MS));
+        Thread.sleep(QUEUE_TIMEOUT_MS + 100);
+        release.countDown();
+        response = waiting.get();
+        check("a query that waited past the timeout gets a 503: " + response.status, 503 == response.status);
+        client.shutdown();
+        check("the busy queries are counted as rejected", 2 == server.rejected.get());
+
+        response = expand(SyntheticIndex.TOPICS[4], "&hits=0");
+        check("a query is served after the busy ones: " + response.status, 200 == response.status);
+        response = get("/status");
+        check("status: " + response.status + " " + response.body, 200 == response.status
+            && 0 == new JSONObject(response.body).getLong("failed"));
+    }
+}
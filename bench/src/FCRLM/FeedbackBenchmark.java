@@ -0,0 +1,195 @@
+package FCRLM;
+
+import common.DocumentVector;
+import common.TRECQuery;
+import common.TRECTopicReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the stages of the FCRLM feedback pipeline, on a SyntheticIndex. <p>
+ * The first topic is run once at setup, to get the state each stage starts from:
+ * the ranked lists of the two rounds, the feedback statistics of each round (each in
+ * a FactoredRLM of its own) and the RM3 weights of the first round. Each benchmark
+ * then repeats one stage on that state; retrieveQuery runs the whole pipeline for
+ * the topic, as retrieveAll() does for each topic. <p>
+ * The document vector cache is warm after the first invocation; run with
+ * -p docVectorCacheMB=0 to measure the stages with (nearly) every vector decoded
+ * from the index. Allocation is reported by the GC profiler (-prof gc), which
+ * 'ant bench' enables.
+ * @author dwaipayan
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FeedbackBenchmark {
+
+    /**
+     * Number of documents in the synthetic index.
+     */
+    @Param({"10000"})
+    int numDocs;
+    @Param({"10", "50", "200", "1000"})
+    int numFeedbackDocs;
+    @Param({"30"})
+    int numFeedbackTermsTopical;
+    @Param({"20"})
+    int numFeedbackTermsCausal;
+    @Param({"256"})
+    String docVectorCacheMB;
+    @Param({"false"})
+    String compactVectors;
+
+    Path            dir;                        // directory of the synthetic collection
+    PrintStream     stdout;
+    RelevanceBasedCausalModel rbcm;
+    TRECQuery       query;
+    String[]        analyzedQuery;              // terms of the initial query
+    String[]        expandedQueryTerms;         // terms of EQ1
+    TopDocs         topDocsPRD1, topDocsPRD2;
+    FactoredRLM     frlmRound1;                 // with the feedback statistics of D1
+    FactoredRLM     frlmRound2;                 // with the feedback statistics of D2
+    FactoredRLM     frlmStats;                  // for setFeedbackStats()
+    HashMap<String, WordProbability> hashmap_PwGivenR;     // T1': RM3 weights of the first round
+    int[]           feedbackDocIds;
+    int             nextDoc;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        dir = Files.createTempDirectory("fcrlm-bench");
+        Properties prop = SyntheticIndex.create(dir, numDocs, 42L,
+            System.getProperty("stopFilePath", "src/resources/smart-stopwords"));
+        prop.setProperty("numFeedbackDocs", Integer.toString(numFeedbackDocs));
+        prop.setProperty("numFeedbackTermsTopical", Integer.toString(numFeedbackTermsTopical));
+        prop.setProperty("numFeedbackTermsCausal", Integer.toString(numFeedbackTermsCausal));
+        prop.setProperty("docVectorCacheMB", docVectorCacheMB);
+        prop.setProperty("compactVectors", compactVectors);
+
+        /* the pipeline logs each query on stdout */
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+
+        rbcm = new RelevanceBasedCausalModel(prop);
+        try (TRECTopicReader topics = new TRECTopicReader(rbcm.queryPath)) {
+            query = topics.next();
+        }
+        Query luceneQuery = rbcm.trecQueryparser.getAnalyzedQuery(query);
+        analyzedQuery = luceneQuery.toString(rbcm.fieldToSearch).split(" ");
+        topDocsPRD1 = search(luceneQuery);
+
+        frlmRound1 = new FactoredRLM(rbcm);
+        frlmRound1.setFeedbackStats(topDocsPRD1, analyzedQuery, rbcm);
+        hashmap_PwGivenR = frlmRound1.RM3(query, topDocsPRD1, analyzedQuery);
+
+        BooleanQuery booleanQuery = frlmRound1.getExpandedQuery(hashmap_PwGivenR, query);
+        expandedQueryTerms = booleanQuery.toString(rbcm.fieldToSearch).split(" ");
+        topDocsPRD2 = search(booleanQuery);
+        frlmRound2 = new FactoredRLM(rbcm);
+        frlmRound2.setFeedbackStats(topDocsPRD2, expandedQueryTerms, rbcm);
+
+        frlmStats = new FactoredRLM(rbcm);
+        feedbackDocIds = new int[Math.min(numFeedbackDocs, topDocsPRD1.scoreDocs.length)];
+        for (int i = 0; i < feedbackDocIds.length; i++)
+            feedbackDocIds[i] = topDocsPRD1.scoreDocs[i].doc;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        System.setOut(stdout);
+        rbcm.runWriter.close();
+        rbcm.indexReader.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private TopDocs search(Query luceneQuery) throws IOException {
+
+        TopScoreDocCollector collector = TopScoreDocCollector.create(rbcm.numHits);
+        rbcm.indexSearcher.search(luceneQuery, collector);
+        return collector.topDocs();
+    }
+
+    @Benchmark
+    public FactoredRLM setFeedbackStats() throws IOException {
+        frlmStats.setFeedbackStats(topDocsPRD1, analyzedQuery, rbcm);
+        return frlmStats;
+    }
+
+    @Benchmark
+    public HashMap rm1() throws Exception {
+        return frlmRound1.RM1(query, topDocsPRD1);
+    }
+
+    @Benchmark
+    public HashMap rm3() throws Exception {
+        return frlmRound1.RM3(query, topDocsPRD1, analyzedQuery);
+    }
+
+    @Benchmark
+    public HashMap rm3Overloaded() throws Exception {
+        return frlmRound2.RM3_overloaded(expandedQueryTerms, topDocsPRD2, analyzedQuery, hashmap_PwGivenR);
+    }
+
+    @Benchmark
+    public BooleanQuery getExpandedQuery() throws Exception {
+        return frlmRound1.getExpandedQuery(hashmap_PwGivenR, query);
+    }
+
+    /**
+     * Decodes the term vector of one feedback document (in turn) into a DocumentVector;
+     * the DocumentVectorCache is not involved.
+     */
+    @Benchmark
+    public DocumentVector getDocumentVector() throws IOException {
+        int luceneDocId = feedbackDocIds[nextDoc];
+        nextDoc = (nextDoc + 1) % feedbackDocIds.length;
+        return new DocumentVector(rbcm.fieldForFeedback).getDocumentVector(luceneDocId, rbcm.indexReader);
+    }
+
+    /**
+     * The whole pipeline for one topic: initial retrieval, the two feedback rounds,
+     * final retrieval and the res lines.
+     */
+    @Benchmark
+    public String retrieveQuery() throws Exception {
+        return rbcm.retrieve(query, rbcm.frlm, rbcm.trecQueryparser);
+    }
+}
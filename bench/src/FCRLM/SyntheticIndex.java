@@ -0,0 +1,135 @@
+package FCRLM;
+
+import static common.CommonVariables.FIELD_BOW;
+import static common.CommonVariables.FIELD_FULL_BOW;
+import static common.CommonVariables.FIELD_ID;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Synthetic collection for the benchmarks. <p>
+ * The documents are drawn from a skewed (Zipf-like) random vocabulary, with a few
+ * planted topics mixed in, so that the topics retrieve a ranked list with a
+ * realistic spread of scores. FIELD_BOW and FIELD_FULL_BOW are indexed with term
+ * vectors, as by the indexer of the project. A topic file over the planted topics
+ * is written along with the index. <p>
+ * The collection is a function of (numDocs, seed) only.
+ * @author dwaipayan
+ */
+
+public class SyntheticIndex {
+
+    static final int VOCABULARY_SIZE = 20000;
+
+    static final String[] TOPICS = {
+        "osama bin laden assassination",
+        "ajmal kasab accused trial",
+        "ashok chavan resignation adarsh",
+        "sanjay dutt accused arms",
+        "babri masjid demolition advani",
+        "sachin tendulkar century record",
+        "commonwealth games corruption kalmadi",
+        "mumbai monsoon flood rescue"
+    };
+
+    /**
+     * Builds the collection under 'dir' (the index in dir/index, the topics in
+     * dir/topics.xml), and returns the properties of a run over it; the caller
+     * sets the feedback parameters.
+     * @param dir Directory to create the collection in
+     * @param numDocs Number of documents
+     * @param seed Seed of the random generator
+     * @param stopFilePath Path of the smart-stopword file
+     * @return Properties of a run on the collection
+     * @throws IOException
+     */
+    public static Properties create(Path dir, int numDocs, long seed, String stopFilePath) throws IOException {
+
+        Analyzer analyzer = new common.EnglishAnalyzerWithSmartStopword(stopFilePath).setAndGetEnglishAnalyzerWithSmartStopword();
+        Path indexPath = dir.resolve("index");
+        Path queryPath = dir.resolve("topics.xml");
+        Path resPath = Files.createDirectories(dir.resolve("res"));
+
+        writeIndex(indexPath, analyzer, numDocs, seed);
+        writeTopics(queryPath);
+
+        Properties prop = new Properties();
+        prop.setProperty("stopFilePath", stopFilePath);
+        prop.setProperty("indexPath", indexPath.toString());
+        prop.setProperty("queryPath", queryPath.toString());
+        prop.setProperty("resPath", resPath.toString() + File.separator);
+        prop.setProperty("fieldToSearch", FIELD_BOW);
+        prop.setProperty("fieldForFeedback", FIELD_BOW);
+        prop.setProperty("numHits", "1000");
+        prop.setProperty("similarityFunction", "2");
+        prop.setProperty("param1", "0.7");
+        prop.setProperty("param2", "0.0");
+        prop.setProperty("rm3.queryMix", "0.4");
+        return prop;
+    }
+
+    private static void writeIndex(Path indexPath, Analyzer analyzer, int numDocs, long seed) throws IOException {
+
+        Random random = new Random(seed);
+        String[] vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(7);
+            for (int j = 0; j < length; j++)
+                word.append((char) ('a' + random.nextInt(26)));
+            vocabulary[i] = word.toString();
+        }
+
+        FieldType withTermVectors = new FieldType(TextField.TYPE_STORED);
+        withTermVectors.setStoreTermVectors(true);
+        withTermVectors.freeze();
+
+        IndexWriterConfig iwcfg = new IndexWriterConfig(analyzer);
+        iwcfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        iwcfg.setRAMBufferSizeMB(256);
+        try (IndexWriter indexWriter = new IndexWriter(FSDirectory.open(indexPath), iwcfg)) {
+            StringBuilder content = new StringBuilder();
+            for (int d = 0; d < numDocs; d++) {
+                content.setLength(0);
+                String topic = TOPICS[random.nextInt(TOPICS.length)];
+                int length = 50 + random.nextInt(450);
+                for (int k = 0; k < length; k++) {
+                    double z = random.nextDouble();
+                    content.append(vocabulary[(int) (vocabulary.length * z * z * z)]).append(' ');
+                    if(random.nextInt(30) == 0)
+                        content.append(topic).append(' ');
+                }
+
+                Document doc = new Document();
+                doc.add(new StringField(FIELD_ID, "DOC-" + d, Field.Store.YES));
+                doc.add(new Field(FIELD_BOW, content.toString(), withTermVectors));
+                doc.add(new Field(FIELD_FULL_BOW, "<doc> " + content + " </doc>", withTermVectors));
+                indexWriter.addDocument(doc);
+            }
+        }
+    }
+
+    private static void writeTopics(Path queryPath) throws IOException {
+
+        try (FileWriter topicWriter = new FileWriter(queryPath.toFile())) {
+            topicWriter.write("<topics>\n");
+            for (int i = 0; i < TOPICS.length; i++)
+                topicWriter.write("<top><num>" + (i + 1) + "</num><title>" + TOPICS[i] + "</title></top>\n");
+            topicWriter.write("</topics>\n");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Checks WeightedDisjunctionQuery.search() against the BooleanQuery of its terms,
+ * with LM Jelinek-Mercer, LM Dirichlet and BM25: on an index of one segment, and
+ * on an index of three segments with deleted documents; with queries of rare terms
+ * that match fewer documents than the hits asked for, and of frequent terms, where
+ * documents are skipped. <p>
+ * The hits have to be the live documents of the query, as many as the BooleanQuery
+ * gives, each with its BooleanQuery score, and the score at each rank that of the
+ * BooleanQuery, up to float rounding. Exits with status 1 if a check fails.
+ * @author dwaipayan
+ */
+
+public class WeightedDisjunctionQueryCheck {
+
+    static final String FIELD = "content";
+    static final int    NUM_DOCS = 3000;
+    static final int    VOCABULARY_SIZE = 500;
+    static final int    NUM_RARE = 4;           // terms rare0..rare3, in about 20 documents each
+    static final float  TOLERANCE = 1e-4f;
+
+    int     checks, failures;
+
+    private void check(String what, boolean ok) {
+        checks++;
+        if(!ok) {
+            failures++;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        WeightedDisjunctionQueryCheck checker = new WeightedDisjunctionQueryCheck();
+        checker.run("one segment", createIndex(false));
+        checker.run("three segments with deletions", createIndex(true));
+        System.out.println("WeightedDisjunctionQueryCheck: " + checker.checks + " checks, " + checker.failures + " failed");
+        System.exit((checker.failures > 0) ? 1 : 0);
+    }
+
+    /**
+     * Writes the documents in one segment, or in three segments (a commit after each
+     * third), with every seventh document deleted.
+     */
+    private static Directory createIndex(boolean segmentsAndDeletions) throws IOException {
+
+        Random random = new Random(42L);
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig iwcfg = new IndexWriterConfig(new WhitespaceAnalyzer());
+        iwcfg.setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter indexWriter = new IndexWriter(dir, iwcfg)) {
+            StringBuilder content = new StringBuilder();
+            for (int d = 0; d < NUM_DOCS; d++) {
+                content.setLength(0);
+                int length = 20 + random.nextInt(200);
+                for (int k = 0; k < length; k++) {
+                    double z = random.nextDouble();
+                    content.append('w').append((int) (VOCABULARY_SIZE * z * z)).append(' ');
+                }
+                for (int r = 0; r < NUM_RARE; r++)
+                    if(random.nextInt(NUM_DOCS / 20) == 0)
+                        content.append("rare").append(r).append(' ');
+                Document doc = new Document();
+                doc.add(new StringField("id", Integer.toString(d), Field.Store.YES));
+                doc.add(new TextField(FIELD, content.toString(), Field.Store.NO));
+                indexWriter.addDocument(doc);
+                if(segmentsAndDeletions && (d + 1) % (NUM_DOCS / 3) == 0)
+                    indexWriter.commit();
+            }
+            if(segmentsAndDeletions)
+                for (int d = 0; d < NUM_DOCS; d += 7)
+                    indexWriter.deleteDocuments(new Term("id", Integer.toString(d)));
+        }
+        return dir;
+    }
+
+    private void run(String index, Directory dir) throws IOException {
+
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            Similarity[] similarities = {new LMJelinekMercerSimilarity(0.7f), new LMDirichletSimilarity(1000),
+                new BM25Similarity()};
+            for (Similarity similarity : similarities) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(similarity);
+                String what = index + ", " + similarity;
+                check(what + ": bounded", WeightedDisjunctionQuery.supports(similarity));
+                checkQuery(what + ", rare terms", searcher, new String[] {"rare0", "rare1"}, new float[] {1f, 0.5f}, 100);
+                checkQuery(what + ", rare and absent terms", searcher, new String[] {"rare2", "absent", "rare3"},
+                    new float[] {0.3f, 1f, 0.8f}, 1000);
+                checkQuery(what + ", frequent terms", searcher, new String[] {"w0", "w3", "w40", "w250", "rare0"},
+                    new float[] {0.2f, 0.4f, 0.6f, 0.8f, 1f}, 10);
+                checkQuery(what + ", frequent terms, more hits", searcher, new String[] {"w1", "w90", "w400"},
+                    new float[] {0.5f, 0.3f, 0.9f}, 200);
+            }
+        }
+    }
+
+    private void checkQuery(String what, IndexSearcher searcher, String[] terms, float[] boosts, int numHits)
+        throws IOException {
+
+        BooleanQuery booleanQuery = new BooleanQuery();
+        for (int i = 0; i < terms.length; i++) {
+            TermQuery termQuery = new TermQuery(new Term(FIELD, terms[i]));
+            termQuery.setBoost(boosts[i]);
+            booleanQuery.add(termQuery, BooleanClause.Occur.SHOULD);
+        }
+        IndexReader reader = searcher.getIndexReader();
+        TopDocs all = searcher.search(booleanQuery, reader.maxDoc());
+        HashMap<Integer, Float> booleanScores = new HashMap<>();
+        for (ScoreDoc scoreDoc : all.scoreDocs)
+            booleanScores.put(scoreDoc.doc, scoreDoc.score);
+        TopDocs expected = searcher.search(booleanQuery, numHits);
+
+        ScoreDoc[] hits = new WeightedDisjunctionQuery(booleanQuery).search(searcher, numHits).scoreDocs;
+        check(what + ": " + hits.length + " hits, " + expected.scoreDocs.length + " expected",
+            hits.length == expected.scoreDocs.length);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < Math.min(hits.length, expected.scoreDocs.length); i++) {
+            int doc = hits[i].doc;
+            if(doc < 0 || doc >= reader.maxDoc()) {
+                check(what + ": doc " + doc + " at rank " + i + " out of the index", false);
+                continue;
+            }
+            check(what + ": doc " + doc + " at rank " + i + " is deleted", null == liveDocs || liveDocs.get(doc));
+            Float score = booleanScores.get(doc);
+            check(what + ": doc " + doc + " at rank " + i + " does not match", null != score);
+            if(null != score)
+                check(what + ": doc " + doc + " scored " + hits[i].score + ", " + score + " expected",
+                    close(hits[i].score, score));
+            check(what + ": score " + hits[i].score + " at rank " + i + ", " + expected.scoreDocs[i].score + " expected",
+                close(hits[i].score, expected.scoreDocs[i].score));
+        }
+    }
+
+    private static boolean close(float a, float b) {
+        return Math.abs(a - b) <= TOLERANCE * Math.max(1f, Math.max(Math.abs(a), Math.abs(b)));
+    }
+}
@@ -0,0 +1,412 @@
+package FCRLM;
+
+import static common.CommonVariables.FIELD_ID;
+import FCRLM.RelevanceBasedCausalModel.Expansion;
+import FCRLM.PipelineMetrics.QueryTimer;
+import common.LatencyHistogram;
+import common.ScoreAccumulator;
+import common.TRECQuery;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
+import org.apache.lucene.search.ScoreDoc;
+import org.json.JSONStringer;
+
+/**
+ * Serves FCRLM over HTTP, with the index reader, the searcher, the analyzer and
+ * the caches kept open and warm between the queries. <p>
+ * GET (or POST, form encoded) /expand?q=text runs the query as a topic title, and
+ * returns, as JSON, the terms of EQ1 and EQ2 with their weights, and the top
+ * 'hits' (default 10, at most numHits) documents of EQ2, with their docids and
+ * scores; with hits=0, EQ2 is not retrieved. The feedback parameters can be set
+ * for the query with numFeedbackDocs, numFeedbackTermsTopical,
+ * numFeedbackTermsCausal and rm3.queryMix; qid names the query. GET /status
+ * returns the counts of the queries and their latency. <p>
+ * The queries are processed by server.maxConcurrent threads, each with its
+ * FactoredRLM and query parser, and up to server.maxQueued more wait in a bounded
+ * queue; a query beyond these, or one that waited more than server.queueTimeoutMs
+ * for its turn, is answered with 503. A query that is not valid (a malformed q, or
+ * a parameter out of range) is answered with 400. The server listens on
+ * server.host (default localhost) and server.port, until the process is stopped;
+ * the summary of the stage latencies is printed then, as at the end of a run.
+ * @author dwaipayan
+ */
+
+public class ExpansionServer {
+
+    RelevanceBasedCausalModel rbcm;
+    HttpServer      server;
+    ThreadPoolExecutor  executor;           // of the queries; the other requests are served by the server thread
+    int             maxConcurrent;
+    int             maxQueued;
+    long            queueTimeoutMs;
+    int             defaultHits;
+    final AtomicLong    served = new AtomicLong(), rejected = new AtomicLong(), failed = new AtomicLong();
+    final AtomicLong    invalid = new AtomicLong();
+    final AtomicLong    queryCount = new AtomicLong();
+    final LatencyHistogram latency = new LatencyHistogram();     // guarded by itself
+
+    /**
+     * Opens the index as for a run (with no query file and no res file) and binds
+     * the server; start() starts serving.
+     * @param prop The properties of the run, with the server.* ones
+     * @throws Exception
+     */
+    public ExpansionServer(Properties prop) throws Exception {
+
+        rbcm = new RelevanceBasedCausalModel(prop, false);
+
+        maxConcurrent = Integer.parseInt(prop.getProperty("server.maxConcurrent",
+            Integer.toString((rbcm.numThreads > 1) ? rbcm.numThreads : Runtime.getRuntime().availableProcessors())));
+        maxQueued = Integer.parseInt(prop.getProperty("server.maxQueued", Integer.toString(4 * maxConcurrent)));
+        queueTimeoutMs = Long.parseLong(prop.getProperty("server.queueTimeoutMs", "1000"));
+        defaultHits = Math.min(10, rbcm.numHits);
+        if(maxConcurrent < 1 || maxQueued < 0)
+            throw new IllegalArgumentException("server.maxConcurrent must be at least 1, and server.maxQueued at least 0");
+        if(null == prop.getProperty("taat.denseMaxDoc"))    // one accumulator per query thread
+            rbcm.taatDenseMaxDoc = ScoreAccumulator.getDefaultDenseMaxDoc(maxConcurrent);
+
+        String host = prop.getProperty("server.host", "localhost");
+        int port = Integer.parseInt(prop.getProperty("server.port"));
+        server = HttpServer.create(new InetSocketAddress(host, port), Integer.parseInt(prop.getProperty("server.backlog", "0")));
+        server.createContext("/expand", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                executor.execute(new ExpandTask(exchange));
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleStatus(exchange);
+            }
+        });
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+            (maxQueued > 0) ? new ArrayBlockingQueue<Runnable>(maxQueued) : new SynchronousQueue<Runnable>(),
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                    if(!(task instanceof ExpandTask))
+                        throw new RejectedExecutionException();
+                    rejected.incrementAndGet();
+                    ExpandTask expandTask = (ExpandTask) task;
+                    try {
+                        send(expandTask.exchange, 503, error("busy: " + maxConcurrent + " queries in process, "
+                            + maxQueued + " waiting"));
+                    } catch (IOException ex) {
+                        System.err.println("ExpansionServer: " + ex);
+                    } finally {
+                        expandTask.exchange.close();
+                    }
+                }
+            });
+        System.out.println("Serving on http://" + host + ":" + server.getAddress().getPort()
+            + "/expand with " + maxConcurrent + " queries at a time, " + maxQueued + " waiting");
+    }
+
+    /**
+     * Starts serving; the server is stopped, and the summary of the run printed,
+     * when the process is stopped.
+     */
+    public void start() {
+
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    /**
+     * Stops serving, and prints the summary of the stage latencies.
+     */
+    public void shutdown() {
+
+        server.stop(0);
+        executor.shutdownNow();
+        System.out.println("ExpansionServer: served: " + served.get() + " rejected: " + rejected.get()
+            + " invalid: " + invalid.get() + " failed: " + failed.get());
+        try {
+            if(null != rbcm.metrics)
+                synchronized(rbcm.metrics) {
+                    rbcm.metrics.showSummary();
+                }
+        } catch (IOException ex) {
+            System.err.println("ExpansionServer: " + ex);
+        }
+    }
+
+    /**
+     * A request to /expand, run by the executor.
+     */
+    private class ExpandTask implements Runnable {
+
+        final HttpExchange  exchange;
+        final long          queuedAt = System.nanoTime();
+
+        ExpandTask(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handleExpand(exchange, queuedAt);
+            } catch (IOException ex) {
+                System.err.println("ExpansionServer: " + ex);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private void handleExpand(HttpExchange exchange, long queuedAt) throws IOException {
+
+        if(System.nanoTime() - queuedAt > TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs)) {
+            rejected.incrementAndGet();
+            send(exchange, 503, error("busy: no query slot within " + queueTimeoutMs + " ms"));
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        if(!"GET".equalsIgnoreCase(method) && !"POST".equalsIgnoreCase(method)) {
+            send(exchange, 405, error("method not allowed: " + method));
+            return;
+        }
+        Map<String, String> params;
+        try {
+            params = getParameters(exchange);
+        } catch (IllegalArgumentException ex) {
+            invalid.incrementAndGet();
+            send(exchange, 400, error("malformed parameters: " + ex.getMessage()));
+            return;
+        }
+        String text = params.get("q");
+        if(null == text || text.trim().isEmpty()) {
+            invalid.incrementAndGet();
+            send(exchange, 400, error("missing parameter: q"));
+            return;
+        }
+
+        int status = 200;
+        String response;
+        try {
+            response = expand(text, params);
+            served.incrementAndGet();
+        } catch (QueryNodeException ex) {
+            invalid.incrementAndGet();
+            status = 400;
+            response = error("malformed query: " + ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            invalid.incrementAndGet();
+            status = 400;
+            response = error(ex.getMessage());
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            System.err.println("ExpansionServer: query '" + text + "' failed:");
+            ex.printStackTrace();
+            status = 500;
+            response = error(ex.toString());
+        }
+        send(exchange, status, response);
+    }
+
+    /**
+     * Runs the query, and returns its expansion and hits as JSON.
+     * @param text The text of the query
+     * @param params The parameters of the request
+     * @return The JSON response
+     * @throws Exception
+     */
+    private String expand(String text, Map<String, String> params) throws Exception {
+
+        long start = System.nanoTime();
+        TRECQuery query = new TRECQuery();
+        query.qid = params.containsKey("qid") ? params.get("qid") : "q" + queryCount.incrementAndGet();
+        query.qtitle = text;
+        int hits = Math.min(getInt(params, "hits", defaultHits, 0), rbcm.numHits);
+
+        /* the parameters of the query, else those of the run, set in the FactoredRLM of the thread */
+        FactoredRLM frlm = rbcm.workerFrlm.get();
+        frlm.numFeedbackDocs = getInt(params, "numFeedbackDocs", rbcm.numFeedbackDocs, 1);
+        frlm.numFeedbackTermsTopical = getInt(params, "numFeedbackTermsTopical", rbcm.numFeedbackTermsTopical, 1);
+        frlm.numFeedbackTermsCausal = getInt(params, "numFeedbackTermsCausal", rbcm.numFeedbackTermsCausal, 1);
+        frlm.QMIX = rbcm.QMIX;
+        if(params.containsKey("rm3.queryMix")) {
+            frlm.QMIX = parseNumber("rm3.queryMix", params.get("rm3.queryMix"));
+            if(frlm.QMIX < 0 || frlm.QMIX > 1)
+                throw new IllegalArgumentException("rm3.queryMix must be in [0, 1]: " + frlm.QMIX);
+        }
+
+        QueryTimer timer = new QueryTimer(query.qid);
+        Expansion expansion = rbcm.expand(query, frlm, rbcm.workerQueryParser.get(), timer, new StringBuilder(), hits > 0);
+
+        JSONStringer json = new JSONStringer();
+        json.object();
+        json.key("qid").value(query.qid);
+        json.key("query").value(expansion.luceneQuery.toString(rbcm.fieldToSearch));
+        appendTerms(json, "eq1", expansion.eq1Terms);
+        appendTerms(json, "eq2", expansion.eq2Terms);
+        json.key("hits").array();
+        if(null != expansion.topDocs) {
+            ScoreDoc[] scoreDocs = expansion.topDocs.scoreDocs;
+            for (int i = 0; i < Math.min(hits, scoreDocs.length); i++)
+                json.object().key("rank").value(i).key("docid").value(getDocid(scoreDocs[i].doc))
+                    .key("score").value((double) scoreDocs[i].score).endObject();
+        }
+        json.endArray();
+        timer.lap(PipelineMetrics.Stage.STORED_FIELDS);
+        long nanos = System.nanoTime() - start;
+        json.key("ms").value(nanos / 1e6);
+        json.endObject();
+
+        synchronized(latency) {
+            latency.record(nanos);
+        }
+        if(null != rbcm.metrics)
+            synchronized(rbcm.metrics) {
+                rbcm.metrics.record(timer);
+            }
+        return json.toString();
+    }
+
+    /**
+     * Appends the terms of an expanded query, with their weights in the query.
+     */
+    private static void appendTerms(JSONStringer json, String key, HashMap<String, WordProbability> terms) throws Exception {
+
+        json.key(key).array();
+        for (Map.Entry<String, WordProbability> entrySet : terms.entrySet()) {
+            if(entrySet.getKey().contains(":"))     // not in the query, as in getExpandedQuery()
+                continue;
+            json.object().key("term").value(entrySet.getKey())
+                .key("weight").value((double) entrySet.getValue().expansionWeight).endObject();
+        }
+        json.endArray();
+    }
+
+    private String getDocid(int luceneDocId) throws IOException {
+        return (null != rbcm.docIdLookup) ? rbcm.docIdLookup.getDocid(luceneDocId)
+            : rbcm.indexReader.document(luceneDocId, Collections.singleton(FIELD_ID)).get(FIELD_ID);
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+
+        try {
+            JSONStringer json = new JSONStringer();
+            json.object();
+            json.key("inFlight").value((long) executor.getActiveCount());
+            json.key("waiting").value((long) executor.getQueue().size());
+            json.key("served").value(served.get());
+            json.key("rejected").value(rejected.get());
+            json.key("invalid").value(invalid.get());
+            json.key("failed").value(failed.get());
+            synchronized(latency) {
+                json.key("p50Ms").value(latency.getValueAtPercentile(50) / 1e6);
+                json.key("p95Ms").value(latency.getValueAtPercentile(95) / 1e6);
+                json.key("p99Ms").value(latency.getValueAtPercentile(99) / 1e6);
+                json.key("maxMs").value(latency.getMax() / 1e6);
+            }
+            json.endObject();
+            send(exchange, 200, json.toString());
+        } catch (Exception ex) {
+            send(exchange, 500, error(ex.toString()));
+        }
+    }
+
+    /**
+     * Returns the parameters of the query string, and of the form encoded body of
+     * a POST request.
+     * @throws IllegalArgumentException for a parameter that is not well percent-encoded
+     */
+    private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+
+        Map<String, String> params = new HashMap<>();
+        parseParameters(exchange.getRequestURI().getRawQuery(), params);
+        String method = exchange.getRequestMethod();
+        if("POST".equalsIgnoreCase(method)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0; )
+                    body.write(buffer, 0, n);
+            }
+            parseParameters(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parseParameters(String encoded, Map<String, String> params) throws IOException {
+
+        if(null == encoded || encoded.isEmpty())
+            return;
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode((eq < 0) ? pair : pair.substring(0, eq), "UTF-8");
+            String value = (eq < 0) ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(key, value);
+        }
+    }
+
+    private static int getInt(Map<String, String> params, String key, int defaultValue, int min) {
+
+        if(!params.containsKey(key))
+            return defaultValue;
+        int value;
+        try {
+            value = Integer.parseInt(params.get(key).trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " is not an integer: " + params.get(key));
+        }
+        if(value < min)
+            throw new IllegalArgumentException(key + " must be at least " + min + ": " + value);
+        return value;
+    }
+
+    private static float parseNumber(String key, String value) {
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " is not a number: " + value);
+        }
+    }
+
+    private static String error(String message) {
+        try {
+            return new JSONStringer().object().key("error").value(message).endObject().toString();
+        } catch (Exception ex) {
+            return "{}";
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -1,23 +1,31 @@
 package FCRLM;
 
+import common.CompactDocumentVector;
+import common.DocLengthStore;
 import common.DocumentVector;
+import common.DocumentVectorCache;
+import common.FieldStatistics;
+import common.IntIntMap;
 import common.PerTermStat;
 import common.TRECQuery;
+import common.TermStatsCache;
+import common.TermVocabulary;
+import common.TopKSelector;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -60,6 +68,55 @@ public class FactoredRLM {
      */
     HashMap<Integer, Float> hash_P_Q_Given_D;
 
+    /**
+     * If true, feedback is estimated on CompactDocumentVectors, instead of DocumentVectors.
+     */
+    boolean         compactVectors;
+    /**
+     * Lengths of the documents in fieldForFeedback, read for the smoothing; null to
+     * take them from the document vectors.
+     */
+    DocLengthStore  docLengths;
+    /**
+     * Vocabulary of fieldForFeedback; maps the terms of CompactDocumentVectors to ids.
+     */
+    TermVocabulary  vocabulary;
+    /**
+     * Hashmap of compact vectors of all feedback documents, keyed by luceneDocId.
+     */
+    HashMap<Integer, CompactDocumentVector> feedbackCompactVectors;
+    /**
+     * Vocabulary ids of all feedback terms, in the order of their first occurrence.
+     */
+    int[]           feedbackTermIds;
+    int             numFeedbackTerms;
+    /**
+     * Position of each feedback term in feedbackTermIds, keyed by vocabulary id.
+     */
+    IntIntMap       feedbackTermIndex;
+    /**
+     * Per-term accumulator of P(w|R), reused across rounds and queries.
+     */
+    float[]         accumulator;
+    /**
+     * Number of weights set in the accumulator, and the corresponding terms
+     * (null with compactVectors; the terms are then looked up from the vocabulary).
+     */
+    int             numCandidates;
+    String[]        candidateTerms;
+    /**
+     * Selector of the top weighted terms, reused across rounds and queries.
+     */
+    TopKSelector    topKSelector = new TopKSelector(64);
+
+    /**
+     * If true, the factored ratio stage of RM3_overloaded() is also computed with the
+     * original nested loop, and the two are compared.
+     */
+    boolean         joinRegression;
+    static final LongAdder joinRegressionChecks = new LongAdder();
+    static final LongAdder joinRegressionMismatches = new LongAdder();
+
     TopDocs         topDocs;
     long            vocSize;                    // vocabulary size
     long            docCount;                   // number of documents in the collection
@@ -91,9 +148,27 @@ public class FactoredRLM {
         vocSize = getVocabularySize();
         docCount = indexReader.maxDoc();        // total number of documents in the index
 
+        this.compactVectors = rbcm.compactVectors;
+        this.joinRegression = rbcm.joinRegression;
+        this.docLengths = rbcm.docLengths;
+        if(compactVectors) {
+            vocabulary = TermVocabulary.getInstance(indexReader, fieldForFeedback);
+            feedbackTermIds = new int[1024];
+            feedbackTermIndex = new IntIntMap(1024);
+        }
+
     }
     
     
+    /**
+     * Returns the number of distinct terms in the feedback documents of the last
+     * setFeedbackStats().
+     * @return Number of feedback terms
+     */
+    public int getNumFeedbackTerms() {
+        return compactVectors ? numFeedbackTerms : feedbackTermStats.size();
+    }
+
     /**
      * Returns the vocabulary size of the collection for the field 'fieldForFeedback'.
      * @return vocSize : Total number of terms in the vocabulary
@@ -101,13 +176,8 @@ public class FactoredRLM {
      */
     private long getVocabularySize() throws IOException {
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(fieldForFeedback);
-        if(null == terms) {
-            System.err.println("Field: "+fieldForFeedback);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
+        // computed once per reader and field, and shared by all the FactoredRLM instances
+        vocSize = FieldStatistics.get(indexReader, fieldForFeedback).getSumTotalTermFreq();
 
         return vocSize;                         // total number of terms in the index in that field
     }
@@ -129,6 +199,13 @@ public class FactoredRLM {
         feedbackTermStats = new HashMap<>();
         hash_P_Q_Given_D = new HashMap<>();
 
+        if(compactVectors) {
+            setFeedbackStatsCompact(topDocs, analyzedQuery);
+            return;
+        }
+
+        TermStatsCache termStatsCache = TermStatsCache.getInstance(indexReader, fieldForFeedback);
+        DocumentVectorCache docVectorCache = DocumentVectorCache.getInstance(indexReader, rbcm.fieldForFeedback);
         ScoreDoc[] hits;
         int hits_length;
         hits = topDocs.scoreDocs;
@@ -137,9 +214,8 @@ public class FactoredRLM {
         for (int i = 0; i < Math.min(numFeedbackDocs, hits_length); i++) {
             // for each feedback document
             int luceneDocId = hits[i].doc;
-            Document d = indexSearcher.doc(luceneDocId);
-            DocumentVector docV = new DocumentVector(rbcm.fieldForFeedback);
-            docV = docV.getDocumentVector(luceneDocId, indexReader);
+            // term vectors are decoded only if the document vector is not in the cache
+            DocumentVector docV = docVectorCache.getDocumentVector(luceneDocId);
             if(docV == null)
                 continue;
             feedbackDocumentVectors.put(luceneDocId, docV);             // the feedback document vector is added in the list
@@ -151,11 +227,8 @@ public class FactoredRLM {
                 
                 if(null == feedbackTermStats.get(key)) {
                 // this feedback term is not already put in the hashmap, hence to be added;
-                    Term termInstance = new Term(fieldForFeedback, key);
-                    long cf = indexReader.totalTermFreq(termInstance);  // CF: Returns the total number of occurrences of term across all documents (the sum of the freq() for each doc that has this term).
-                    long df = indexReader.docFreq(termInstance);        // DF: Returns the number of documents containing the term
-
-                    feedbackTermStats.put(key, new PerTermStat(key, cf, df));
+                    // cf, df are taken from the process-wide cache instead of seeking the term dictionary
+                    feedbackTermStats.put(key, termStatsCache.getTermStat(key));
                 }
             } // ends for each term of that feedback document
         } // ends for each feedback document
@@ -188,6 +261,87 @@ public class FactoredRLM {
     }
 
     
+    /**
+     * setFeedbackStats() on CompactDocumentVectors: sets
+     * {@link #feedbackCompactVectors}, {@link #feedbackTermIds} and
+     * {@link #hash_P_Q_Given_D}; the collection statistics of the terms are taken
+     * from the vocabulary, so no per-term object is made.
+     * @param topDocs
+     * @param analyzedQuery
+     * @throws IOException 
+     */
+    private void setFeedbackStatsCompact(TopDocs topDocs, String[] analyzedQuery) throws IOException {
+
+        DocumentVectorCache docVectorCache = DocumentVectorCache.getInstance(indexReader, fieldForFeedback);
+        feedbackCompactVectors = new HashMap<>();
+        feedbackTermIndex.clear();
+        numFeedbackTerms = 0;
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        for (int i = 0; i < Math.min(numFeedbackDocs, hits.length); i++) {
+            // for each feedback document
+            int luceneDocId = hits[i].doc;
+            CompactDocumentVector docV = docVectorCache.getCompactDocumentVector(luceneDocId, vocabulary);
+            if(docV == null)
+                continue;
+            feedbackCompactVectors.put(luceneDocId, docV);
+
+            for (int j = 0; j < docV.getNumTerms(); j++) {
+            // for each term of that feedback document
+                int termId = docV.getTermId(j);
+                if(feedbackTermIndex.get(termId, -1) < 0) {
+                    if(numFeedbackTerms == feedbackTermIds.length)
+                        feedbackTermIds = Arrays.copyOf(feedbackTermIds, numFeedbackTerms * 2);
+                    feedbackTermIndex.put(termId, numFeedbackTerms);
+                    feedbackTermIds[numFeedbackTerms++] = termId;
+                }
+            }
+        }
+
+        // Calculating P(Q|d) for each feedback documents
+        for (Map.Entry<Integer, CompactDocumentVector> entrySet : feedbackCompactVectors.entrySet()) {
+            CompactDocumentVector docV = entrySet.getValue();
+
+            float p_Q_GivenD = 0;
+            for (String qTerm : analyzedQuery){
+                if(qTerm.contains("^")){
+                    String[] expQuery = qTerm.split("\\^");
+                    qTerm = expQuery[0];
+                }
+                int termId = vocabulary.getId(qTerm);
+                if(termId == TermVocabulary.NO_TERM || feedbackTermIndex.get(termId, -1) < 0)
+                    p_Q_GivenD += return_Smoothed_MLE_Log(TermVocabulary.NO_TERM, 0, docV);
+                else
+                    p_Q_GivenD += return_Smoothed_MLE_Log(termId, vocabulary.getCF(termId), docV);
+            }
+            hash_P_Q_Given_D.put(entrySet.getKey(), p_Q_GivenD);
+        }
+    } // ends setFeedbackStatsCompact()
+
+
+    /**
+     * return_Smoothed_MLE_Log() on a CompactDocumentVector.
+     * @param termId Vocabulary id of the term; NO_TERM if the term is not a feedback term
+     * @param cf Collection frequency of the term
+     * @param dv The document vector
+     * @return Smoothed MLE of the term in the document, in log
+     */
+    public float return_Smoothed_MLE_Log(int termId, long cf, CompactDocumentVector dv) {
+
+        float smoothedMLEofTerm = 1;
+
+        if (termId != TermVocabulary.NO_TERM) {
+            int tf = dv.getTf(termId);
+            smoothedMLEofTerm = 
+                ((tf!=0)?(mixingLambda * (float)tf / (float)getDocSize(dv.luceneDocId, dv.getDocSize())):(0)) /
+                ((1.0f-mixingLambda)*(float)cf/(float)vocSize);
+        }
+
+        return (float)Math.log(1+smoothedMLEofTerm);
+
+    } // ends return_Smoothed_MLE_Log()
+
+    
     public float return_Smoothed_MLE_Log(String t, DocumentVector dv) throws IOException {
         
         float smoothedMLEofTerm = 1;
@@ -197,13 +351,41 @@ public class FactoredRLM {
 
         if (colPTS != null) 
             smoothedMLEofTerm = 
-                ((docPTS!=null)?(mixingLambda * (float)docPTS.getCF() / (float)dv.getDocSize()):(0)) /
+                ((docPTS!=null)?(mixingLambda * (float)docPTS.getCF() / (float)getDocSize(dv.luceneDocId, dv.getDocSize())):(0)) /
                 ((feedbackTermStats.get(t)!=null)?((1.0f-mixingLambda)*(float)feedbackTermStats.get(t).getCF()/(float)vocSize):0);
      
         return (float)Math.log(1+smoothedMLEofTerm);
 
     } // ends return_Smoothed_MLE_Log()
 
+    /**
+     * Returns the size of the document: from the document length store, if there is
+     * one, else the size of its vector (the two are the same).
+     * @param luceneDocId The lucene doc id of the document
+     * @param vectorSize The size of the document vector
+     * @return Size of the document
+     */
+    private int getDocSize(int luceneDocId, int vectorSize) {
+        return (null == docLengths || luceneDocId < 0) ? vectorSize : docLengths.getLength(luceneDocId);
+    }
+
+    /**
+     * Smoothed MLE, in log, of a term that occurs in the document: the same
+     * expression as return_Smoothed_MLE_Log() for a feedback term with nonzero tf.
+     * @param tf Frequency of the term in the document
+     * @param docSize Size of the document
+     * @param cf Collection frequency of the term
+     * @return log(1 + (lambda*tf/|d|) / ((1-lambda)*cf/|C|))
+     */
+    private float smoothedMLELog(long tf, int docSize, long cf) {
+
+        float smoothedMLEofTerm =
+            (mixingLambda * (float)tf / (float)docSize) /
+            ((1.0f-mixingLambda)*(float)cf/(float)vocSize);
+
+        return (float)Math.log(1+smoothedMLEofTerm);
+    }
+
     
     public float getCollectionProbability(String term, IndexReader reader, String fieldName) throws IOException {
 
@@ -231,6 +413,107 @@ public class FactoredRLM {
     } // ends returnMLE_of_w_in_Q()
 
     
+    /**
+     * Sets {@link #accumulator} with P(w|R) of each feedback term w, in the
+     * order of the feedback terms: <p>
+     * P(w|R) = \sum{d\in PRD} {smoothedMLE(w,d)*smoothedMLE(Q,d)} <p>
+     * Computed document-major: the nonzero terms of each feedback document are
+     * visited once, and their contributions are added into a per-term accumulator.
+     * A term absent from d contributes log(1+0)*P(Q|d) = 0, hence nothing is added
+     * for the zero-tf pairs. The documents are visited in the same order as in the
+     * term-major sum, so the weights are identical.
+     * @throws IOException 
+     */
+    private void setFeedbackTermWeights() throws IOException {
+
+        if(compactVectors) {
+            float[] acc = getAccumulator(numFeedbackTerms);
+            for (Map.Entry<Integer, CompactDocumentVector> docEntrySet : feedbackCompactVectors.entrySet()) {
+            // for each doc in RF-set
+                CompactDocumentVector docV = docEntrySet.getValue();
+                float p_Q_GivenD = hash_P_Q_Given_D.get(docEntrySet.getKey());
+                int docSize = getDocSize(docEntrySet.getKey(), docV.getDocSize());
+                for (int j = 0; j < docV.getNumTerms(); j++) {
+                // for each t in d
+                    int termId = docV.getTermId(j);
+                    acc[feedbackTermIndex.get(termId, -1)] +=
+                        smoothedMLELog(docV.getFreq(j), docSize, vocabulary.getCF(termId)) * p_Q_GivenD;
+                }
+            }
+            numCandidates = numFeedbackTerms;
+            candidateTerms = null;      // looked up from the vocabulary, for the selected terms only
+            return;
+        }
+
+        // position of each feedback term in the accumulator, in the order of feedbackTermStats
+        int numTerms = feedbackTermStats.size();
+        HashMap<String, Integer> termIndex = new HashMap<>(numTerms * 2);
+        String[] terms = new String[numTerms];
+        long[] cfs = new long[numTerms];
+        int i = 0;
+        for (Map.Entry<String, PerTermStat> entrySet : feedbackTermStats.entrySet()) {
+            terms[i] = entrySet.getKey();
+            cfs[i] = entrySet.getValue().getCF();
+            termIndex.put(terms[i], i);
+            i++;
+        }
+
+        float[] acc = getAccumulator(numTerms);
+        for (Map.Entry<Integer, DocumentVector> docEntrySet : feedbackDocumentVectors.entrySet()) {
+        // for each doc in RF-set
+            DocumentVector docV = docEntrySet.getValue();
+            float p_Q_GivenD = hash_P_Q_Given_D.get(docEntrySet.getKey());
+            int docSize = getDocSize(docEntrySet.getKey(), docV.getDocSize());
+            for (Map.Entry<String, PerTermStat> termEntrySet : docV.docPerTermStat.entrySet()) {
+            // for each t in d
+                int t = termIndex.get(termEntrySet.getKey());
+                acc[t] += smoothedMLELog(termEntrySet.getValue().getCF(), docSize, cfs[t]) * p_Q_GivenD;
+            }
+        }
+        numCandidates = numTerms;
+        candidateTerms = terms;
+    } // ends setFeedbackTermWeights()
+
+    /**
+     * Returns the per-term accumulator, cleared for 'size' terms; the array is
+     * reused across rounds and queries.
+     * @param size Number of feedback terms
+     * @return Zeroed accumulator of at least 'size' entries
+     */
+    private float[] getAccumulator(int size) {
+
+        if(null == accumulator || accumulator.length < size)
+            accumulator = new float[Math.max(size, 1024)];
+        else
+            Arrays.fill(accumulator, 0, size, 0f);
+        return accumulator;
+    }
+
+    /**
+     * Puts the 'numTerms' feedback terms with the highest P(w|R) (as set by
+     * setFeedbackTermWeights()) in {@link #hashmap_PwGivenR}, in non-increasing
+     * order of P(w|R); terms with equal weight are kept in the order of the
+     * feedback terms. Selected with a bounded heap, without sorting all the terms.
+     * @param numTerms Number of terms to select
+     * @return Sum of P(w|R) of the selected terms
+     */
+    private float selectTopFeedbackTerms(int numTerms) {
+
+        float normFactor = 0;
+        // at least one term is taken, as it used to be with the sorted list
+        topKSelector.reset(Math.max(numTerms, 1));
+        for (int i = 0; i < numCandidates; i++)
+            topKSelector.offer(i, accumulator[i]);
+
+        for (int i : topKSelector.drain()) {
+            String w = (null != candidateTerms) ? candidateTerms[i] : vocabulary.getTerm(feedbackTermIds[i]);
+            hashmap_PwGivenR.put(w, new WordProbability(w, accumulator[i]));
+            normFactor += accumulator[i];
+        }
+        return normFactor;
+    }
+
+
     /**
      * RM1: IID Sampling <p>
      * Returns 'hashmap_PwGivenR' containing all terms of PR docs (PRD) with 
@@ -242,51 +525,19 @@ public class FactoredRLM {
      * @return 'hashmap_PwGivenR' containing all terms of PR docs with weights
      * @throws Exception 
      */
-    public HashMap RM1(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM1(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        float p_W_GivenR_one_doc;
-        list_PwGivenR = new ArrayList<>();
         hashmap_PwGivenR = new LinkedHashMap<>();
-        int expansionTermCount = 0;
         float normFactor = 0;
         
         /* Calculating for each w_i in R: P(w_i|R)~P(wi, q1 ... qk)
            P(wi, q1 ... qk) = \sum{d\in PRD} {P(w|D)*\prod_{i=1... k} {P(qi|D}} */
-
-        for (Map.Entry<String, PerTermStat> entrySet : feedbackTermStats.entrySet()) {
-            // for each t in R:
-            String t = entrySet.getKey();
-            p_W_GivenR_one_doc = 0;
-
-            for (Map.Entry<Integer, DocumentVector> docEntrySet : feedbackDocumentVectors.entrySet()) {
-            // for each doc in RF-set
-                int luceneDocId = docEntrySet.getKey();
-                p_W_GivenR_one_doc += return_Smoothed_MLE_Log(t, feedbackDocumentVectors.get(luceneDocId)) *
-                    hash_P_Q_Given_D.get(luceneDocId);
-            }
-            list_PwGivenR.add(new WordProbability(t, p_W_GivenR_one_doc));
-        }
-        
-        /* sorting list in descending order
-           T1 = Normalized RM1(D1) -- <sorted> */
-        Collections.sort(list_PwGivenR, new Comparator<WordProbability>(){
-            @Override
-            public int compare(WordProbability t, WordProbability t1) {
-                return t.p_w_given_R<t1.p_w_given_R?1:t.p_w_given_R==t1.p_w_given_R?0:-1;
-            }}); 
-        // -- sorted list in descending order
+        setFeedbackTermWeights();
         
-        // T1'= normalized top n terms of t1 <with highest weights>
-        for (WordProbability singleTerm : list_PwGivenR) {
-            if (null == hashmap_PwGivenR.get(singleTerm.w)) {
-                hashmap_PwGivenR.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
-                expansionTermCount++;
-                normFactor += singleTerm.p_w_given_R;
-                if(expansionTermCount>=numFeedbackTermsTopical)
-                    break;
-            }
-            //* else: The t is already entered in the hash-map 
-        } //hashmap_PwGivenR has all terms of PRDs along with their probabilities 
+        /* T1 = Normalized RM1(D1)
+           T1'= normalized top n terms of t1 <with highest weights> */
+        normFactor = selectTopFeedbackTerms(numFeedbackTermsTopical);
+        //hashmap_PwGivenR has the top terms of PRDs along with their probabilities 
 
         /* selecting top numFeedbackTerms terms and normalize */
         // ++ Normalizing 
@@ -302,51 +553,18 @@ public class FactoredRLM {
     }   // ends RM1()
     
     
-    public HashMap RM1_overloaded(String[] analyzedQuery , TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM1_overloaded(String[] analyzedQuery , TopDocs topDocs) throws Exception {
 
-        float p_W_GivenR_one_doc;
-        list_PwGivenR = new ArrayList<>();
         hashmap_PwGivenR = new LinkedHashMap<>();
-        int expansionTermCount = 0;
         float normFactor = 0;
         
         /* Calculating for each wi in R: P(wi|R)~P(wi, q1 ... qk)
            P(wi, q1 ... qk) = \sum{d\in PRD} {P(w|D)*\prod_{i=1... k} {P(qi|D}} */
-
-        for (Map.Entry<String, PerTermStat> entrySet : feedbackTermStats.entrySet()) {
-            // for each t in R:
-            String t = entrySet.getKey();
-            p_W_GivenR_one_doc = 0;
-
-            for (Map.Entry<Integer, DocumentVector> docEntrySet : feedbackDocumentVectors.entrySet()) {
-            // for each doc in RF-set
-                int luceneDocId = docEntrySet.getKey();
-                p_W_GivenR_one_doc += 
-                    return_Smoothed_MLE_Log(t, feedbackDocumentVectors.get(luceneDocId)) *
-                    hash_P_Q_Given_D.get(luceneDocId);
-            }
-            list_PwGivenR.add(new WordProbability(t, p_W_GivenR_one_doc));
-        }
+        setFeedbackTermWeights();
         
-        /* sorting list in descending order
-           T2 = Nomalized RM1(D2)--sorted */
-        Collections.sort(list_PwGivenR, new Comparator<WordProbability>(){
-            @Override
-            public int compare(WordProbability t, WordProbability t1) {
-                return t.p_w_given_R<t1.p_w_given_R?1:t.p_w_given_R==t1.p_w_given_R?0:-1;
-            }}); 
-        // -- sorted list in descending order
-        
-        for (WordProbability singleTerm : list_PwGivenR) {
-            if (null == hashmap_PwGivenR.get(singleTerm.w)) {
-                hashmap_PwGivenR.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
-                expansionTermCount++;
-                normFactor += singleTerm.p_w_given_R;
-                if(expansionTermCount>=numFeedbackTermsCausal)
-                    break;
-            }
-            //* else: The t is already entered in the hash-map 
-        } //hashmap_PwGivenR has all terms of PRDs along with their probabilities 
+        /* T2 = Nomalized RM1(D2), top n terms */
+        normFactor = selectTopFeedbackTerms(numFeedbackTermsCausal);
+        //hashmap_PwGivenR has the top terms of PRDs along with their probabilities 
 
         /* selecting top numFeedbackTerms terms and normalize */
         // ++ Normalizing 
@@ -372,7 +590,7 @@ public class FactoredRLM {
      * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3(TRECQuery query, TopDocs topDocs, String[] initialQuery) throws Exception {
+    public HashMap<String, WordProbability> RM3(TRECQuery query, TopDocs topDocs, String[] initialQuery) throws Exception {
 
         hashmap_PwGivenR = new LinkedHashMap<>();
         float normFactor = 0;
@@ -416,12 +634,11 @@ public class FactoredRLM {
     } // end RM3()
     
     
-    public HashMap RM3_overloaded(String[] analyzedQuery , TopDocs topDocs, String[] initialQuery, 
+    public HashMap<String, WordProbability> RM3_overloaded(String[] analyzedQuery , TopDocs topDocs, String[] initialQuery, 
             HashMap<String, WordProbability> hashMap_PwGivenR_RM3) throws Exception {
         
         hashmap_PwGivenR = new LinkedHashMap<>();
-        float normFactor = 0, epsilon = 0, p_w_given_Rc_final = 0;
-        int expansionTermCount = 0;
+        float normFactor = 0, epsilon = 0;
         hashmap_PwGivenR = RM1_overloaded(analyzedQuery, topDocs);
         // hashmap_PwGivenR has all terms of PRDs along with their probabilities 
 
@@ -434,30 +651,9 @@ public class FactoredRLM {
         /* T2'= normalized top n terms of T2 that are overlapping with T1'
            T2"= {t2 / t1} ; t1=term from T1' & t2=term from T2' */
         
-        normFactor = 0;
-        HashMap<String, WordProbability> hashmap_PwGivenR_final = new LinkedHashMap<>();
-        for(Map.Entry<String, WordProbability> entrySet_level2 : hashmap_PwGivenR.entrySet()){
-            for(Map.Entry<String, WordProbability> entrySet_level1 : hashMap_PwGivenR_RM3.entrySet()){
-                if(entrySet_level2.getKey().equalsIgnoreCase(entrySet_level1.getKey())){
-                    p_w_given_Rc_final = entrySet_level2.getValue().p_w_given_R / entrySet_level1.getValue().p_w_given_R;
-                    normFactor += p_w_given_Rc_final;
-                    hashmap_PwGivenR_final.put(entrySet_level2.getKey(), new WordProbability(entrySet_level2.getKey(), p_w_given_Rc_final));
-                    //System.out.println("term : "+ entrySet_level2.getKey() + "\t proba : "+ p_w_given_Rc_final);
-                }
-                else{
-                    p_w_given_Rc_final = entrySet_level2.getValue().p_w_given_R / epsilon;
-                    hashmap_PwGivenR_final.put(entrySet_level2.getKey(), new WordProbability(entrySet_level2.getKey(), p_w_given_Rc_final));
-                    normFactor += p_w_given_Rc_final;
-                }
-            }
-        }
-        
-        // ++ Normalizing 
-        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR_final.entrySet()) {
-            WordProbability wp = entrySet.getValue();
-            wp.p_w_given_R /= normFactor;
-        }
-        // -- Normalizing done
+        HashMap<String, WordProbability> hashmap_PwGivenR_final = factoredRatio(hashmap_PwGivenR, hashMap_PwGivenR_RM3, epsilon);
+        if(joinRegression)
+            checkFactoredRatio(hashmap_PwGivenR_final, factoredRatio_nestedLoop(hashmap_PwGivenR, hashMap_PwGivenR_RM3, epsilon));
 
         normFactor = 0;
         /* Each w of R: P(w|R) to be (1-QMIX)*P(w|R) */
@@ -488,16 +684,15 @@ public class FactoredRLM {
         }
         
         // +++ Normalizing
+        HashSet<String> queryTerms = new HashSet<>();     // case-folded, for the case-insensitive membership test
+        for (String qTerm : initialQuery)
+            queryTerms.add(foldCase(qTerm));
         for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR_final.entrySet()) {
             int flag = 0;
-            for(int i=0; i<initialQuery.length; i++){
-                if(entrySet.getKey().equalsIgnoreCase(initialQuery[i])){
-                    WordProbability wp = entrySet.getValue();
-                    wp.expansionWeight = wp.p_w_given_R;
-                    hashmap_PwGivenR_final.put(entrySet.getKey(), wp);
-                    flag = 1;
-                    break;
-                }
+            if(queryTerms.contains(foldCase(entrySet.getKey()))){
+                WordProbability wp = entrySet.getValue();
+                wp.expansionWeight = wp.p_w_given_R;
+                flag = 1;
             }
             if(flag == 0){
                 WordProbability wp = entrySet.getValue();
@@ -508,26 +703,19 @@ public class FactoredRLM {
         }
         // -- Normalizing done
         
-        /* sorting list in descending order
-           select top terms from the sorted list and normalize */
+        /* select top terms in non-increasing order of weight and normalize;
+           with a bounded heap, in place of sorting all the terms */
         list_PwGivenR = new ArrayList<>(hashmap_PwGivenR_final.values());
         hashmap_PwGivenR_final = new LinkedHashMap<>();
-                
-        Collections.sort(list_PwGivenR, new Comparator<WordProbability>(){
-            @Override
-            public int compare(WordProbability t, WordProbability t1) {
-                return t.p_w_given_R<t1.p_w_given_R?1:t.p_w_given_R==t1.p_w_given_R?0:-1;
-            }}); 
-        // -- sorted list in descending order
-        
-        for (WordProbability singleTerm : list_PwGivenR) {
-            if (null == hashmap_PwGivenR_final.get(singleTerm.w)) {
-                hashmap_PwGivenR_final.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
-                expansionTermCount++;
-                normFactor += singleTerm.p_w_given_R;
-                if(expansionTermCount>=numFeedbackTermsCausal)
-                    break;
-            }
+
+        topKSelector.reset(Math.max(numFeedbackTermsCausal, 1));
+        for (int i = 0; i < list_PwGivenR.size(); i++)
+            topKSelector.offer(i, list_PwGivenR.get(i).p_w_given_R);
+
+        for (int i : topKSelector.drain()) {
+            WordProbability singleTerm = list_PwGivenR.get(i);
+            hashmap_PwGivenR_final.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
+            normFactor += singleTerm.p_w_given_R;
         }
         //System.out.println("Final selected terms : " + hashmap_PwGivenR_final.size());
         
@@ -540,6 +728,172 @@ public class FactoredRLM {
 
         return hashmap_PwGivenR_final;
     } // end RM3_overloaded()
+
+
+    /**
+     * T2"= {t2 / t1}; t1=term from T1' & t2=term from T2', normalized. <p>
+     * Each term of T2 is looked up in T1 with a case-folded key, instead of being
+     * compared with every term of T1. The result is bit-for-bit the same as that of
+     * the nested loop it replaces ({@link #factoredRatio_nestedLoop}). That loop
+     * (re)wrote a T2 entry for each T1 entry, so the entry keeps its ratio against
+     * the last T1 entry: t2/t1 if that matches, t2/epsilon otherwise. The
+     * normalizer adds up the ratio against each T1 entry, in order. Both are kept;
+     * the normalizer is summed over primitive arrays, with no string comparison.
+     * @param level2 T2: second-level RM1 weights
+     * @param level1 T1: first-level RM3 weights
+     * @param epsilon Mean weight of T2, for the terms not in T1
+     * @return T2" in the order of T2
+     */
+    private HashMap<String, WordProbability> factoredRatio(HashMap<String, WordProbability> level2,
+            HashMap<String, WordProbability> level1, float epsilon) {
+
+        HashMap<String, WordProbability> hashmap_PwGivenR_final = new LinkedHashMap<>();
+        int n1 = level1.size();
+        if(0 == n1)
+            return hashmap_PwGivenR_final;
+
+        /* T1 keyed by the case-folded term: positions (in T1 order) of the terms with the key */
+        float[] p1 = new float[n1];
+        HashMap<String, int[]> level1Positions = new HashMap<>(n1 * 2);
+        int i = 0;
+        for (Map.Entry<String, WordProbability> entrySet_level1 : level1.entrySet()) {
+            p1[i] = entrySet_level1.getValue().p_w_given_R;
+            String key = foldCase(entrySet_level1.getKey());
+            int[] positions = level1Positions.get(key);
+            if(null == positions)
+                positions = new int[] {i};
+            else {
+                positions = Arrays.copyOf(positions, positions.length + 1);
+                positions[positions.length - 1] = i;
+            }
+            level1Positions.put(key, positions);
+            i++;
+        }
+
+        float normFactor = 0;
+        for (Map.Entry<String, WordProbability> entrySet_level2 : level2.entrySet()) {
+            float p2 = entrySet_level2.getValue().p_w_given_R;
+            float ratioToEpsilon = p2 / epsilon;
+            int[] positions = level1Positions.get(foldCase(entrySet_level2.getKey()));
+
+            int next = 0;   // next matching position of T1
+            for (i = 0; i < n1; i++) {
+                if(null != positions && next < positions.length && positions[next] == i) {
+                    normFactor += p2 / p1[i];
+                    next++;
+                }
+                else
+                    normFactor += ratioToEpsilon;
+            }
+            boolean lastMatches = null != positions && positions[positions.length - 1] == n1 - 1;
+            float p_w_given_Rc_final = lastMatches ? p2 / p1[n1 - 1] : ratioToEpsilon;
+            hashmap_PwGivenR_final.put(entrySet_level2.getKey(), new WordProbability(entrySet_level2.getKey(), p_w_given_Rc_final));
+        }
+
+        // ++ Normalizing 
+        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR_final.entrySet()) {
+            WordProbability wp = entrySet.getValue();
+            wp.p_w_given_R /= normFactor;
+        }
+        // -- Normalizing done
+
+        return hashmap_PwGivenR_final;
+    } // ends factoredRatio()
+
+
+    /**
+     * The original computation of T2"= {t2 / t1}, comparing each term of T2 with
+     * each term of T1; kept as the reference for rm3.joinRegression.
+     * @param level2 T2: second-level RM1 weights
+     * @param level1 T1: first-level RM3 weights
+     * @param epsilon Mean weight of T2, for the terms not in T1
+     * @return T2" in the order of T2
+     */
+    private HashMap<String, WordProbability> factoredRatio_nestedLoop(HashMap<String, WordProbability> level2,
+            HashMap<String, WordProbability> level1, float epsilon) {
+
+        float normFactor = 0, p_w_given_Rc_final;
+        HashMap<String, WordProbability> hashmap_PwGivenR_final = new LinkedHashMap<>();
+        for(Map.Entry<String, WordProbability> entrySet_level2 : level2.entrySet()){
+            for(Map.Entry<String, WordProbability> entrySet_level1 : level1.entrySet()){
+                if(entrySet_level2.getKey().equalsIgnoreCase(entrySet_level1.getKey())){
+                    p_w_given_Rc_final = entrySet_level2.getValue().p_w_given_R / entrySet_level1.getValue().p_w_given_R;
+                    normFactor += p_w_given_Rc_final;
+                    hashmap_PwGivenR_final.put(entrySet_level2.getKey(), new WordProbability(entrySet_level2.getKey(), p_w_given_Rc_final));
+                }
+                else{
+                    p_w_given_Rc_final = entrySet_level2.getValue().p_w_given_R / epsilon;
+                    hashmap_PwGivenR_final.put(entrySet_level2.getKey(), new WordProbability(entrySet_level2.getKey(), p_w_given_Rc_final));
+                    normFactor += p_w_given_Rc_final;
+                }
+            }
+        }
+
+        // ++ Normalizing 
+        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR_final.entrySet()) {
+            WordProbability wp = entrySet.getValue();
+            wp.p_w_given_R /= normFactor;
+        }
+        // -- Normalizing done
+
+        return hashmap_PwGivenR_final;
+    } // ends factoredRatio_nestedLoop()
+
+
+    /**
+     * Compares T2" of factoredRatio() with that of the nested loop: the terms, their
+     * order and the bits of their weights; the differences are reported on stderr.
+     * @param joined T2" from factoredRatio()
+     * @param reference T2" from factoredRatio_nestedLoop()
+     */
+    private void checkFactoredRatio(HashMap<String, WordProbability> joined, HashMap<String, WordProbability> reference) {
+
+        joinRegressionChecks.increment();
+        boolean same = joined.size() == reference.size();
+        Iterator<Map.Entry<String, WordProbability>> it = reference.entrySet().iterator();
+        for (Map.Entry<String, WordProbability> entrySet : joined.entrySet()) {
+            if(!it.hasNext()) {
+                same = false;
+                break;
+            }
+            Map.Entry<String, WordProbability> refEntry = it.next();
+            if(!entrySet.getKey().equals(refEntry.getKey())
+                || Float.floatToIntBits(entrySet.getValue().p_w_given_R) != Float.floatToIntBits(refEntry.getValue().p_w_given_R)) {
+                System.err.println("rm3.joinRegression: mismatch: " + entrySet.getKey() + " " + entrySet.getValue().p_w_given_R
+                    + " vs. " + refEntry.getKey() + " " + refEntry.getValue().p_w_given_R);
+                same = false;
+            }
+        }
+        if(!same)
+            joinRegressionMismatches.increment();
+    }
+
+
+    /**
+     * Returns a key of the term such that two terms have equal keys iff
+     * String.equalsIgnoreCase() holds for them; the term itself if it is
+     * already folded, which is the case for analyzed terms.
+     * @param term The term
+     * @return Case-folded key of the term
+     */
+    static String foldCase(String term) {
+
+        for (int i = 0; i < term.length(); ) {
+            int cp = term.codePointAt(i);
+            if(Character.toLowerCase(Character.toUpperCase(cp)) != cp) {
+                StringBuilder folded = new StringBuilder(term.length());
+                folded.append(term, 0, i);
+                for (int j = i; j < term.length(); ) {
+                    int c = term.codePointAt(j);
+                    folded.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c)));
+                    j += Character.charCount(c);
+                }
+                return folded.toString();
+            }
+            i += Character.charCount(cp);
+        }
+        return term;
+    }
     
     
     private static HashMap sortTermWeight(HashMap map) {
@@ -583,7 +937,6 @@ public class FactoredRLM {
             Term t = new Term(rbcm.fieldToSearch, key);
             Query tq = new TermQuery(t);
             tq.setBoost(value);
-            BooleanQuery.setMaxClauseCount(4096);
             booleanQuery.add(tq, BooleanClause.Occur.SHOULD);
         }
 
@@ -605,7 +958,6 @@ public class FactoredRLM {
             Term t = new Term(rbcm.fieldToSearch, key);
             Query tq = new TermQuery(t);
             tq.setBoost(value);
-            BooleanQuery.setMaxClauseCount(4096);
             booleanQuery.add(tq, BooleanClause.Occur.SHOULD);
         }
 
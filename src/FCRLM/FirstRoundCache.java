@@ -0,0 +1,256 @@
+package FCRLM;
+
+import common.DocumentVector;
+import common.PerTermStat;
+import common.TableFiles;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * On-disk cache of the first round of a query: the initial retrieval (topDocsPRD1)
+ * and the feedback statistics that setFeedbackStats() derives from it, so that a
+ * rerun of the same topics (e.g. with another rm3.queryMix, or other term counts)
+ * skips both. <p>
+ * An entry is keyed by a string made by the caller of all that the first round
+ * depends on (analyzed query, similarity, fields, parameters); it is kept in a file
+ * named from the index, the id of its commit (see TableFiles) and the hash of the
+ * key, and holds the commit id and the key themselves, to be checked on load. The
+ * entries of other commits of the index are deleted when the cache is opened, and an
+ * entry of another commit found on load (e.g. of an index rebuilt since) is deleted. <p>
+ * The file is binary (variable length integers): the hits, then the feedback terms
+ * with cf, df, idf and norm_cf, the feedback document vectors with the terms as
+ * indexes in that table, and P(Q|d). The maps are written in their iteration order,
+ * and are rebuilt by inserting in that order, so that they iterate as the maps
+ * setFeedbackStats() made, and the weights computed from them are the same. The
+ * terms of a document vector take the idf and norm_cf of the feedback term, as
+ * DocumentVector does. Only the DocumentVector based statistics are cached (not the
+ * compactVectors ones, which are keyed by the ids of the vocabulary of the process).
+ * @author dwaipayan
+ */
+
+public class FirstRoundCache {
+
+    static final private int MAGIC = 0x46433152;    // "FC1R"
+    static final private int VERSION = 2;
+
+    private final Path      cacheDir;
+    private final String    prefix;                 // of the names of the entries of the index
+    private final byte[]    commitId;               // of the commit of the reader
+    private final String    commitPrefix;           // of the entries of the commit of the reader
+
+    /**
+     * Opens the cache in 'cacheDir', for the index of 'indexReader', deleting the
+     * entries of the other commits of the index.
+     * @param indexReader The index reader
+     * @param cacheDir Directory to keep the entries in
+     * @throws IOException If the index is not in a file system directory, or its
+     * commit has no id
+     */
+    public FirstRoundCache(IndexReader indexReader, Path cacheDir) throws IOException {
+
+        this.cacheDir = cacheDir;
+        Path indexPath = TableFiles.getIndexPath(indexReader);
+        if(null == indexPath)
+            throw new IOException("FirstRoundCache: the index is not in a file system directory");
+        commitId = TableFiles.getCommitId(indexReader);
+        if(null == commitId)
+            throw new IOException("FirstRoundCache: the index commit has no id (index older than Lucene 5.0)");
+
+        prefix = TableFiles.getIndexPrefix(indexPath, "fr1");
+        commitPrefix = prefix + StringHelper.idToString(commitId) + "-";
+
+        Files.createDirectories(cacheDir);
+        int stale = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDir, prefix + "*")) {
+            for (Path entry : entries)
+                if(!entry.getFileName().toString().startsWith(commitPrefix)) {
+                    Files.deleteIfExists(entry);
+                    stale++;
+                }
+        }
+        if(stale > 0)
+            System.out.println("FirstRoundCache: " + stale + " entries of other index commits deleted");
+    }
+
+    /**
+     * Deletes an entry that is not of the commit of the reader, or of another version.
+     */
+    private void drop(Path entryPath) throws IOException {
+        System.err.println("FirstRoundCache: stale entry deleted: " + entryPath);
+        Files.deleteIfExists(entryPath);
+    }
+
+    private Path getEntryPath(String key) {
+        return cacheDir.resolve(commitPrefix + Integer.toHexString(key.hashCode()) + "-" + key.length());
+    }
+
+    /**
+     * Loads the entry of the key: sets the feedback statistics of 'frlm' as
+     * setFeedbackStats() would, and returns the hits of the initial retrieval.
+     * @param key The key of the first round
+     * @param frlm FactoredRLM to set the statistics of
+     * @return The hits; null if there is no entry of the commit for the key
+     * @throws IOException
+     */
+    public TopDocs load(String key, FactoredRLM frlm) throws IOException {
+
+        Path entryPath = getEntryPath(key);
+        InputStream stream;
+        try {
+            stream = Files.newInputStream(entryPath);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        boolean stale = false;
+        try {
+            try (InputStream in = new BufferedInputStream(stream, 1 << 16)) {
+                DataInput input = new InputStreamDataInput(in);
+                if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    stale = true;
+                    return null;
+                }
+                byte[] entryCommitId = new byte[StringHelper.ID_LENGTH];
+                input.readBytes(entryCommitId, 0, entryCommitId.length);
+                if(!Arrays.equals(commitId, entryCommitId)) {
+                    stale = true;
+                    return null;
+                }
+                if(!key.equals(input.readString()))
+                    return null;
+
+                int totalHits = input.readVInt();
+                float maxScore = Float.intBitsToFloat(input.readInt());
+                ScoreDoc[] scoreDocs = new ScoreDoc[input.readVInt()];
+                for (int i = 0; i < scoreDocs.length; i++)
+                    scoreDocs[i] = new ScoreDoc(input.readVInt(), Float.intBitsToFloat(input.readInt()));
+
+                int numTerms = input.readVInt();
+                HashMap<String, PerTermStat> feedbackTermStats = new HashMap<>();
+                PerTermStat[] terms = new PerTermStat[numTerms];
+                for (int i = 0; i < numTerms; i++) {
+                    String term = input.readString();
+                    terms[i] = new PerTermStat(term, input.readVLong(), input.readVLong(),
+                        Double.longBitsToDouble(input.readLong()), Double.longBitsToDouble(input.readLong()));
+                    feedbackTermStats.put(term, terms[i]);
+                }
+
+                int numDocs = input.readVInt();
+                HashMap<Integer, DocumentVector> feedbackDocumentVectors = new HashMap<>();
+                for (int i = 0; i < numDocs; i++) {
+                    int luceneDocId = input.readVInt();
+                    int size = input.readVInt();
+                    int docTerms = input.readVInt();
+                    HashMap<String, PerTermStat> docPerTermStat = new HashMap<>();
+                    for (int j = 0; j < docTerms; j++) {
+                        PerTermStat colPTS = terms[input.readVInt()];
+                        String term = colPTS.t;
+                        docPerTermStat.put(term, new PerTermStat(term, input.readVLong(), 1, colPTS.getIDF(), colPTS.getNormalizedCF()));
+                    }
+                    DocumentVector dv = new DocumentVector(docPerTermStat, size);
+                    dv.field = frlm.fieldForFeedback;
+                    dv.luceneDocId = luceneDocId;
+                    feedbackDocumentVectors.put(luceneDocId, dv);
+                }
+
+                int numScores = input.readVInt();
+                HashMap<Integer, Float> hash_P_Q_Given_D = new HashMap<>();
+                for (int i = 0; i < numScores; i++)
+                    hash_P_Q_Given_D.put(input.readVInt(), Float.intBitsToFloat(input.readInt()));
+
+                frlm.feedbackDocumentVectors = feedbackDocumentVectors;
+                frlm.feedbackTermStats = feedbackTermStats;
+                frlm.hash_P_Q_Given_D = hash_P_Q_Given_D;
+                return new TopDocs(totalHits, scoreDocs, maxScore);
+            }
+        }
+        finally {
+            // deleted once closed
+            if(stale)
+                drop(entryPath);
+        }
+    }
+
+    /**
+     * Stores the hits of the initial retrieval, and the feedback statistics set in
+     * 'frlm' by setFeedbackStats() on these hits, as the entry of the key.
+     * @param key The key of the first round
+     * @param topDocs The hits of the initial retrieval
+     * @param frlm FactoredRLM with the feedback statistics
+     * @throws IOException
+     */
+    public void store(String key, TopDocs topDocs, FactoredRLM frlm) throws IOException {
+
+        Path entryPath = getEntryPath(key);
+        Path tmpPath = Files.createTempFile(cacheDir, entryPath.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpPath), 1 << 16)) {
+                DataOutput output = new OutputStreamDataOutput(out);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeBytes(commitId, commitId.length);
+                output.writeString(key);
+
+                output.writeVInt(topDocs.totalHits);
+                output.writeInt(Float.floatToRawIntBits(topDocs.getMaxScore()));
+                output.writeVInt(topDocs.scoreDocs.length);
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    output.writeVInt(scoreDoc.doc);
+                    output.writeInt(Float.floatToRawIntBits(scoreDoc.score));
+                }
+
+                HashMap<String, Integer> termIndex = new HashMap<>(2 * frlm.feedbackTermStats.size());
+                output.writeVInt(frlm.feedbackTermStats.size());
+                for (Map.Entry<String, PerTermStat> entrySet : frlm.feedbackTermStats.entrySet()) {
+                    PerTermStat pts = entrySet.getValue();
+                    termIndex.put(entrySet.getKey(), termIndex.size());
+                    output.writeString(entrySet.getKey());
+                    output.writeVLong(pts.getCF());
+                    output.writeVLong(pts.getDF());
+                    output.writeLong(Double.doubleToRawLongBits(pts.getIDF()));
+                    output.writeLong(Double.doubleToRawLongBits(pts.getNormalizedCF()));
+                }
+
+                output.writeVInt(frlm.feedbackDocumentVectors.size());
+                for (Map.Entry<Integer, DocumentVector> entrySet : frlm.feedbackDocumentVectors.entrySet()) {
+                    DocumentVector dv = entrySet.getValue();
+                    output.writeVInt(entrySet.getKey());
+                    output.writeVInt(dv.getDocSize());
+                    output.writeVInt(dv.docPerTermStat.size());
+                    for (Map.Entry<String, PerTermStat> termEntrySet : dv.docPerTermStat.entrySet()) {
+                        output.writeVInt(termIndex.get(termEntrySet.getKey()));
+                        output.writeVLong(termEntrySet.getValue().getCF());
+                    }
+                }
+
+                output.writeVInt(frlm.hash_P_Q_Given_D.size());
+                for (Map.Entry<Integer, Float> entrySet : frlm.hash_P_Q_Given_D.entrySet()) {
+                    output.writeVInt(entrySet.getKey());
+                    output.writeInt(Float.floatToRawIntBits(entrySet.getValue()));
+                }
+            }
+            Files.move(tmpPath, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package FCRLM;
+
+import common.CandidatePoolFilter;
+import common.DocumentVector;
+import common.LatencyHistogram;
+import common.PerTermStat;
+import common.QueryPreparer;
+import common.TRECQuery;
+import common.TRECRunWriter;
+import common.TRECTopicReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * Runs FCRLM for a grid of feedback parameters in one pass over the queries,
+ * writing one res file per configuration, named as the res file of a separate
+ * run with that configuration. <p>
+ * Each of numFeedbackDocs, numFeedbackTermsTopical, numFeedbackTermsCausal,
+ * rm3.queryMix and param1 can be given as a comma separated list of values and
+ * ranges (start:end:step, end included); the grid is their cross product. For
+ * each query, the work that a configuration shares with others is done once:
+ * <ul>
+ * <li>the initial retrieval, per param1 (the similarity);</li>
+ * <li>the feedback statistics of its top documents, per (param1, numFeedbackDocs);</li>
+ * <li>RM3, the EQ1 retrieval and the feedback statistics of its top documents, per
+ *     (param1, numFeedbackDocs, numFeedbackTermsTopical, rm3.queryMix);</li>
+ * </ul>
+ * and RM3_overloaded and the EQ2 retrieval are done for each numFeedbackTermsCausal.
+ * The methods of FactoredRLM are called with the same arguments as by
+ * RelevanceBasedCausalModel.retrieve(), so each res file is that of the separate run. <p>
+ * The queries are taken one at a time; with numThreads greater than 1, the units of
+ * each level are processed in parallel by a pool of workers, with the FactoredRLM of
+ * the worker. The shared feedback statistics are only read once they are made.
+ * compactVectors, firstRoundCache and metrics are not used in a sweep.
+ * @author dwaipayan
+ */
+
+public class ParameterSweep {
+
+    /**
+     * The properties that can take a list of values.
+     */
+    static final String[] SWEPT = {"numFeedbackDocs", "numFeedbackTermsTopical", "numFeedbackTermsCausal",
+        "rm3.queryMix", "param1"};
+
+    RelevanceBasedCausalModel rbcm;         // made with the first value of each list
+    int[]           numFeedbackDocs;
+    int[]           numFeedbackTermsTopical;
+    int[]           numFeedbackTermsCausal;
+    float[]         queryMix;
+    float[]         param1;
+    IndexSearcher[] searchers;              // with the similarity of each param1
+    String[]        runNames;               // of each configuration
+    TRECRunWriter[] runWriters;             // of each configuration
+    LongAdder       initialSearches = new LongAdder(), eq1Searches = new LongAdder(), eq2Searches = new LongAdder();
+
+    /**
+     * Feedback statistics set by FactoredRLM.setFeedbackStats(), to be set in the
+     * FactoredRLM of any worker; they are not changed once made.
+     */
+    private static class FeedbackStats {
+
+        final HashMap<Integer, DocumentVector>  feedbackDocumentVectors;
+        final HashMap<String, PerTermStat>      feedbackTermStats;
+        final HashMap<Integer, Float>           hash_P_Q_Given_D;
+
+        FeedbackStats(FactoredRLM frlm) {
+            feedbackDocumentVectors = frlm.feedbackDocumentVectors;
+            feedbackTermStats = frlm.feedbackTermStats;
+            hash_P_Q_Given_D = frlm.hash_P_Q_Given_D;
+        }
+
+        void setTo(FactoredRLM frlm) {
+            frlm.feedbackDocumentVectors = feedbackDocumentVectors;
+            frlm.feedbackTermStats = feedbackTermStats;
+            frlm.hash_P_Q_Given_D = hash_P_Q_Given_D;
+        }
+    }
+
+    /**
+     * Returns true if any of the SWEPT properties has more than one value.
+     * @param prop The properties of the run
+     * @return true for a sweep
+     */
+    public static boolean isSweep(Properties prop) {
+
+        for (String key : SWEPT) {
+            String value = prop.getProperty(key);
+            if(null != value && (value.contains(",") || value.contains(":")))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the values of a list of values and ranges (start:end:step, end
+     * included), in order, without repetition.
+     * @param key The property
+     * @param value The list
+     * @return The values
+     */
+    static List<BigDecimal> parseValues(String key, String value) {
+
+        Set<BigDecimal> values = new LinkedHashSet<>();
+        for (String item : value.split(",")) {
+            String[] range = item.trim().split(":");
+            if(1 == range.length) {
+                values.add(new BigDecimal(range[0].trim()).stripTrailingZeros());
+                continue;
+            }
+            if(3 != range.length)
+                throw new IllegalArgumentException(key + ": a range is start:end:step: " + item);
+            BigDecimal start = new BigDecimal(range[0].trim());
+            BigDecimal end = new BigDecimal(range[1].trim());
+            BigDecimal step = new BigDecimal(range[2].trim());
+            if(step.signum() <= 0)
+                throw new IllegalArgumentException(key + ": the step of a range must be positive: " + item);
+            for (BigDecimal v = start; v.compareTo(end) <= 0; v = v.add(step))
+                values.add(v.stripTrailingZeros());
+        }
+        return new ArrayList<>(values);
+    }
+
+    private static int[] parseInts(String key, String value) {
+
+        List<BigDecimal> values = parseValues(key, value);
+        int[] ints = new int[values.size()];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = values.get(i).intValueExact();
+        return ints;
+    }
+
+    private static float[] parseFloats(String key, String value) {
+
+        // as the value of a separate run is parsed; distinct values may give the same float
+        Set<Float> floats = new LinkedHashSet<>();
+        for (BigDecimal v : parseValues(key, value))
+            floats.add(Float.parseFloat(v.toPlainString()));
+        float[] values = new float[floats.size()];
+        int i = 0;
+        for (float f : floats)
+            values[i++] = f;
+        return values;
+    }
+
+    /**
+     * Reads the lists of values, sets up the run with the first value of each, and
+     * opens the res file of each configuration.
+     * @param prop The properties of the run
+     * @throws Exception
+     */
+    public ParameterSweep(Properties prop) throws Exception {
+
+        numFeedbackDocs = parseInts("numFeedbackDocs", prop.getProperty("numFeedbackDocs"));
+        numFeedbackTermsTopical = parseInts("numFeedbackTermsTopical", prop.getProperty("numFeedbackTermsTopical"));
+        numFeedbackTermsCausal = parseInts("numFeedbackTermsCausal", prop.getProperty("numFeedbackTermsCausal"));
+        queryMix = parseFloats("rm3.queryMix", prop.getProperty("rm3.queryMix"));
+
+        Properties base = new Properties();
+        base.putAll(prop);
+        base.setProperty("numFeedbackDocs", Integer.toString(numFeedbackDocs[0]));
+        base.setProperty("numFeedbackTermsTopical", Integer.toString(numFeedbackTermsTopical[0]));
+        base.setProperty("numFeedbackTermsCausal", Integer.toString(numFeedbackTermsCausal[0]));
+        base.setProperty("rm3.queryMix", Float.toString(queryMix[0]));
+        if(null != prop.getProperty("param1")) {
+            param1 = parseFloats("param1", prop.getProperty("param1"));
+            base.setProperty("param1", Float.toString(param1[0]));
+        }
+        if(Boolean.parseBoolean(prop.getProperty("compactVectors", "false")))
+            System.err.println("sweep: compactVectors is not used");
+        base.setProperty("compactVectors", "false");
+        base.setProperty("firstRoundCache", "false");
+        base.setProperty("metrics", "false");
+        /* the initial run file is read deep enough for all the numFeedbackDocs */
+        if(null == prop.getProperty("initialRunDepth")) {
+            int depth = Integer.parseInt(prop.getProperty("poolSize", "0"));
+            for (int d : numFeedbackDocs)
+                depth = Math.max(depth, d);
+            base.setProperty("initialRunDepth", Integer.toString(depth));
+        }
+        /* a buffer per res file; smaller, unless it is set */
+        if(null == prop.getProperty("res.bufferKB"))
+            base.setProperty("res.bufferKB", "64");
+
+        rbcm = new RelevanceBasedCausalModel(base);
+        if(null == param1)
+            param1 = new float[] {rbcm.param1};
+
+        searchers = new IndexSearcher[param1.length];
+        for (int p = 0; p < param1.length; p++) {
+            searchers[p] = new IndexSearcher(rbcm.indexReader);
+            Similarity similarity = rbcm.getSimilarityFunction(rbcm.simFuncChoice, param1[p], rbcm.param2);
+            if(null != similarity)
+                searchers[p].setSimilarity(similarity);
+        }
+
+        int numConfigurations = param1.length * numFeedbackDocs.length * numFeedbackTermsTopical.length
+            * numFeedbackTermsCausal.length * queryMix.length;
+        runNames = new String[numConfigurations];
+        runWriters = new TRECRunWriter[numConfigurations];
+        for (int p = 0; p < param1.length; p++)
+            for (int d = 0; d < numFeedbackDocs.length; d++)
+                for (int t = 0; t < numFeedbackTermsTopical.length; t++)
+                    for (int c = 0; c < numFeedbackTermsCausal.length; c++)
+                        for (int q = 0; q < queryMix.length; q++) {
+                            int i = getConfiguration(p, d, t, c, q);
+                            runNames[i] = rbcm.getRunName(searchers[p].getSimilarity(true), numFeedbackDocs[d],
+                                numFeedbackTermsTopical[t], numFeedbackTermsCausal[c], queryMix[q]);
+                            String resPath = rbcm.getResPath(runNames[i]);
+                            // the res file of the first configuration is opened by rbcm
+                            runWriters[i] = resPath.equals(rbcm.resPath) ? rbcm.runWriter : new TRECRunWriter(resPath, base);
+                        }
+
+        System.out.println("Sweep of " + numConfigurations + " configurations: numFeedbackDocs "
+            + Arrays.toString(numFeedbackDocs) + " numFeedbackTermsTopical " + Arrays.toString(numFeedbackTermsTopical)
+            + " numFeedbackTermsCausal " + Arrays.toString(numFeedbackTermsCausal) + " rm3.queryMix "
+            + Arrays.toString(queryMix) + " param1 " + Arrays.toString(param1));
+    }
+
+    /**
+     * Returns the index of the configuration.
+     */
+    private int getConfiguration(int p, int d, int t, int c, int q) {
+        return (((p * numFeedbackDocs.length + d) * numFeedbackTermsTopical.length + t)
+            * numFeedbackTermsCausal.length + c) * queryMix.length + q;
+    }
+
+    /**
+     * Sets the parameters of a configuration in 'frlm'.
+     */
+    private void setParameters(FactoredRLM frlm, int p, int d) {
+        frlm.numFeedbackDocs = numFeedbackDocs[d];
+        frlm.mixingLambda = RelevanceBasedCausalModel.getMixingLambda(param1[p]);
+    }
+
+    /**
+     * Runs all the configurations for all the queries, and closes the res files.
+     * @throws Exception
+     */
+    public void sweepAll() throws Exception {
+
+        ExecutorService executor = (rbcm.numThreads > 1) ? Executors.newFixedThreadPool(rbcm.numThreads) : null;
+        LatencyHistogram queryLatency = new LatencyHistogram();
+        long start = System.currentTimeMillis();
+        try (TRECTopicReader topics = new TRECTopicReader(rbcm.queryPath)) {
+            while(topics.hasNext()) {
+                TRECQuery query = topics.next();
+                long queryStart = System.nanoTime();
+                sweep(query, executor);
+                queryLatency.record(System.nanoTime() - queryStart);
+            }
+        }
+        finally {
+            if(null != executor)
+                executor.shutdownNow();
+        }
+        for (TRECRunWriter runWriter : runWriters)
+            runWriter.close();
+        rbcm.showRunStat();
+
+        long queries = queryLatency.getCount();
+        System.out.println(String.format(Locale.ROOT, "Sweep: %d configurations, %d queries in %d ms"
+            + " (per query: p50 %.3f ms, p95 %.3f ms, max %.3f ms)", runWriters.length, queries,
+            System.currentTimeMillis() - start, queryLatency.getValueAtPercentile(50) / 1e6,
+            queryLatency.getValueAtPercentile(95) / 1e6, queryLatency.getMax() / 1e6));
+        System.out.println("Sweep: searches: initial " + initialSearches.sum() + ", EQ1 " + eq1Searches.sum()
+            + ", EQ2 " + eq2Searches.sum() + " (" + runWriters.length * queries + " each in separate runs)");
+    }
+
+    /**
+     * Runs all the configurations for a query, and writes the res lines of each to
+     * its res file.
+     * @param query The query
+     * @param executor Pool of workers; null to run in the calling thread
+     * @throws Exception
+     */
+    private void sweep(final TRECQuery query, ExecutorService executor) throws Exception {
+
+        final Query luceneQuery = rbcm.trecQueryparser.getAnalyzedQuery(query);
+        final String[] analyzedQuery = QueryPreparer.getQueryTerms(luceneQuery, rbcm.fieldToSearch);
+        System.out.println(query.qid + ": Initial query: " + luceneQuery.toString(rbcm.fieldToSearch));
+
+        /* the initial retrieval, per param1; or the ranking of the initial run file */
+        final TopDocs fromFile = (null == rbcm.allTopDocsFromFileHashMap) ? null : rbcm.allTopDocsFromFileHashMap.get(query.qid);
+        List<Callable<TopDocs>> searches = new ArrayList<>();
+        for (int p = 0; p < param1.length; p++) {
+            final int fp = p;
+            searches.add(new Callable<TopDocs>() {
+                @Override
+                public TopDocs call() throws Exception {
+                    if(null != fromFile)
+                        return fromFile;
+                    TopScoreDocCollector collector = TopScoreDocCollector.create(Math.max(rbcm.numHits, rbcm.poolSize));
+                    searchers[fp].search(luceneQuery, collector);
+                    initialSearches.increment();
+                    return collector.topDocs();
+                }
+            });
+        }
+        final List<TopDocs> topDocsPRD1 = invokeAll(executor, searches);
+        final CandidatePoolFilter[] pools = new CandidatePoolFilter[param1.length];
+        if(rbcm.poolSize > 0)
+            for (int p = 0; p < param1.length; p++)
+                pools[p] = new CandidatePoolFilter(topDocsPRD1.get(p).scoreDocs, rbcm.poolSize);
+
+        /* the feedback statistics of the initial retrieval, per (param1, numFeedbackDocs) */
+        List<Callable<FeedbackStats>> firstRounds = new ArrayList<>();
+        for (int p = 0; p < param1.length; p++)
+            for (int d = 0; d < numFeedbackDocs.length; d++) {
+                final int fp = p, fd = d;
+                firstRounds.add(new Callable<FeedbackStats>() {
+                    @Override
+                    public FeedbackStats call() throws Exception {
+                        FactoredRLM frlm = rbcm.workerFrlm.get();
+                        setParameters(frlm, fp, fd);
+                        frlm.setFeedbackStats(topDocsPRD1.get(fp), analyzedQuery, rbcm);
+                        return new FeedbackStats(frlm);
+                    }
+                });
+            }
+        final List<FeedbackStats> firstRoundStats = invokeAll(executor, firstRounds);
+
+        /* RM3, EQ1 and its feedback statistics, per (param1, numFeedbackDocs,
+           numFeedbackTermsTopical, rm3.queryMix); then EQ2 per numFeedbackTermsCausal */
+        List<Callable<Void>> expansions = new ArrayList<>();
+        for (int p = 0; p < param1.length; p++)
+            for (int d = 0; d < numFeedbackDocs.length; d++)
+                for (int t = 0; t < numFeedbackTermsTopical.length; t++)
+                    for (int q = 0; q < queryMix.length; q++) {
+                        final int fp = p, fd = d, ft = t, fq = q;
+                        final FeedbackStats stats = firstRoundStats.get(p * numFeedbackDocs.length + d);
+                        expansions.add(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                expand(query, analyzedQuery, topDocsPRD1.get(fp), pools[fp], stats, fp, fd, ft, fq);
+                                return null;
+                            }
+                        });
+                    }
+        invokeAll(executor, expansions);
+    }
+
+    /**
+     * The two levels of expansion of a query for the configurations that share
+     * (param1, numFeedbackDocs, numFeedbackTermsTopical, rm3.queryMix), as in
+     * RelevanceBasedCausalModel.retrieve().
+     */
+    private void expand(TRECQuery query, String[] analyzedQuery, TopDocs topDocsPRD1, CandidatePoolFilter pool,
+        FeedbackStats stats, int p, int d, int t, int q) throws Exception {
+
+        StringBuilder log = new StringBuilder();    // not printed
+        boolean taat = "taat".equals(rbcm.retrievalMode);
+        FactoredRLM frlm = rbcm.workerFrlm.get();
+        setParameters(frlm, p, d);
+        frlm.numFeedbackTermsTopical = numFeedbackTermsTopical[t];
+        frlm.QMIX = queryMix[q];
+        stats.setTo(frlm);
+
+        HashMap<String, WordProbability> hashmap_PwGivenR = frlm.RM3(query, topDocsPRD1, analyzedQuery);
+        BooleanQuery booleanQuery = frlm.getExpandedQuery(hashmap_PwGivenR, query);
+        TopDocs topDocsPRD2 = rbcm.search(searchers[p],
+            taat ? new WeightedTermsQuery(rbcm.fieldToSearch, hashmap_PwGivenR, false) : booleanQuery, pool, 0, log);
+        eq1Searches.increment();
+        String[] expandedQuery = booleanQuery.toString(rbcm.fieldToSearch).split(" ");
+        frlm.setFeedbackStats(topDocsPRD2, expandedQuery, rbcm);
+
+        for (int c = 0; c < numFeedbackTermsCausal.length; c++) {
+            frlm.numFeedbackTermsCausal = numFeedbackTermsCausal[c];
+            HashMap<String, WordProbability> hashmap_PwGivenR_causal = frlm.RM3_overloaded(expandedQuery, topDocsPRD2,
+                analyzedQuery, hashmap_PwGivenR);
+            BooleanQuery booleanQuery_causal = frlm.getExpandedQuery_Overloaded(hashmap_PwGivenR_causal, expandedQuery);
+            TopDocs topDocsFinal = rbcm.search(searchers[p],
+                taat ? new WeightedTermsQuery(rbcm.fieldToSearch, hashmap_PwGivenR_causal, true) : booleanQuery_causal, pool, 1, log);
+            eq2Searches.increment();
+
+            int i = getConfiguration(p, d, t, c, q);
+            runWriters[i].write(rbcm.getResLines(query.qid, topDocsFinal.scoreDocs, runNames[i]));
+        }
+    }
+
+    /**
+     * Runs the tasks, in parallel on 'executor' if there is one, and returns their
+     * results in order; the exception of a failed task is thrown.
+     */
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws Exception {
+
+        List<T> results = new ArrayList<>(tasks.size());
+        if(null == executor || 1 == tasks.size()) {
+            for (Callable<T> task : tasks)
+                results.add(task.call());
+            return results;
+        }
+        try {
+            for (Future<T> future : executor.invokeAll(tasks))
+                results.add(future.get());
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+        return results;
+    }
+}
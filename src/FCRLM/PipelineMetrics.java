@@ -0,0 +1,217 @@
+package FCRLM;
+
+import common.LatencyHistogram;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Latency of the stages of the FCRLM pipeline, and sizes of the intermediate
+ * results, per query. <p>
+ * A QueryTimer is made for each query, and is lapped at the end of each stage by
+ * the thread that processes the query: one System.nanoTime() per stage. The timers
+ * are recorded, in the order of the queries, by the thread that writes the res
+ * file, into one LatencyHistogram per stage and per count; so no lock is taken and
+ * nothing is allocated while recording. showSummary() prints p50/p95/p99, mean
+ * and max of each; with a csv path, a line per query is also written. <p>
+ * The queries run at warm-up are recorded apart (recordWarmUp()), and the summary
+ * compares their cold latency with the latency of the other queries of the run:
+ * the replayed queries are left out of that comparison, as the warm-up has filled
+ * the caches with their own terms and documents.
+ * @author dwaipayan
+ */
+
+public class PipelineMetrics {
+
+    /**
+     * Stages of retrieve(), in the order in which they run.
+     */
+    public enum Stage {
+        INITIAL_SEARCH("initialSearch"),
+        FEEDBACK_STATS_1("feedbackStats1"),
+        RM3("rm3"),
+        EQ1_SEARCH("eq1Search"),
+        FEEDBACK_STATS_2("feedbackStats2"),
+        RM3_OVERLOADED("rm3Overloaded"),
+        EQ2_SEARCH("eq2Search"),
+        STORED_FIELDS("storedFields"),
+        RES_WRITE("resWrite");
+
+        final String name;
+        Stage(String name) {this.name = name;}
+    }
+
+    /**
+     * Counts of a query.
+     */
+    public enum Count {
+        TERM_VECTORS_READ("termVectorsRead"),
+        FEEDBACK_TERMS_1("feedbackTerms1"),
+        FEEDBACK_TERMS_2("feedbackTerms2"),
+        EQ1_CLAUSES("eq1Clauses"),
+        EQ2_CLAUSES("eq2Clauses");
+
+        final String name;
+        Count(String name) {this.name = name;}
+    }
+
+    /**
+     * Timings and counts of one query.
+     */
+    public static class QueryTimer {
+
+        final String    qid;
+        final long[]    nanos = new long[Stage.values().length];
+        final long[]    counts = new long[Count.values().length];
+        private long    mark;
+
+        public QueryTimer(String qid) {
+            this.qid = qid;
+        }
+
+        /**
+         * Starts the timing of the first stage.
+         */
+        public void start() {
+            mark = System.nanoTime();
+        }
+
+        /**
+         * Ends 'stage', and starts the next one.
+         * @param stage The stage that ends
+         */
+        public void lap(Stage stage) {
+            long now = System.nanoTime();
+            nanos[stage.ordinal()] += now - mark;
+            mark = now;
+        }
+
+        public void set(Count count, long value) {
+            counts[count.ordinal()] = value;
+        }
+
+        public void add(Count count, long value) {
+            counts[count.ordinal()] += value;
+        }
+    }
+
+    private final LatencyHistogram[]   stageHistograms = new LatencyHistogram[Stage.values().length];
+    private final LatencyHistogram      totalHistogram = new LatencyHistogram();
+    private final LatencyHistogram[]    countHistograms = new LatencyHistogram[Count.values().length];
+    private final BufferedWriter        csv;
+    private final HashSet<String>       warmUpQids = new HashSet<>();
+    private final LatencyHistogram      warmUpHistogram = new LatencyHistogram();   // of the warm-up queries, cold
+    private final LatencyHistogram      othersHistogram = new LatencyHistogram();   // of the other queries in the run
+
+    /**
+     * @param csvPath Path of the per-query csv file; null for none
+     * @throws IOException
+     */
+    public PipelineMetrics(String csvPath) throws IOException {
+
+        for (int i = 0; i < stageHistograms.length; i++)
+            stageHistograms[i] = new LatencyHistogram();
+        for (int i = 0; i < countHistograms.length; i++)
+            countHistograms[i] = new LatencyHistogram();
+
+        if(null == csvPath) {
+            csv = null;
+            return;
+        }
+        csv = new BufferedWriter(new FileWriter(csvPath));
+        csv.write("qid");
+        for (Stage stage : Stage.values())
+            csv.write("," + stage.name + "Ms");
+        csv.write(",totalMs");
+        for (Count count : Count.values())
+            csv.write("," + count.name);
+        csv.newLine();
+    }
+
+    /**
+     * Records the timings and counts of a query; to be called by one thread.
+     * @param timer The timer of the query
+     * @throws IOException
+     */
+    public void record(QueryTimer timer) throws IOException {
+
+        long total = 0;
+        for (int i = 0; i < stageHistograms.length; i++) {
+            stageHistograms[i].record(timer.nanos[i]);
+            total += timer.nanos[i];
+        }
+        totalHistogram.record(total);
+        if(!warmUpQids.contains(timer.qid))
+            othersHistogram.record(total - timer.nanos[Stage.RES_WRITE.ordinal()]);
+        for (int i = 0; i < countHistograms.length; i++)
+            countHistograms[i].record(timer.counts[i]);
+
+        if(null != csv) {
+            csv.write(timer.qid);
+            for (long nanos : timer.nanos)
+                csv.write("," + toMs(nanos));
+            csv.write("," + toMs(total));
+            for (long count : timer.counts)
+                csv.write("," + count);
+            csv.newLine();
+        }
+    }
+
+    /**
+     * Records the latency of a query run at warm-up, before the queries of the run;
+     * it is not part of the stage latencies.
+     * @param timer The timer of the query
+     */
+    public void recordWarmUp(QueryTimer timer) {
+
+        long total = 0;
+        for (long nanos : timer.nanos)
+            total += nanos;
+        warmUpHistogram.record(total);
+        warmUpQids.add(timer.qid);
+    }
+
+    /**
+     * Prints the summary of the run, and closes the csv file.
+     * @throws IOException
+     */
+    public void showSummary() throws IOException {
+
+        if(null != csv)
+            csv.close();
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "Stage latency (ms) over %d queries:%n", totalHistogram.getCount()));
+        summary.append(String.format(Locale.ROOT, "%-20s %10s %10s %10s %10s %10s%n", "stage", "p50", "p95", "p99", "mean", "max"));
+        for (Stage stage : Stage.values())
+            appendLatency(summary, stage.name, stageHistograms[stage.ordinal()]);
+        appendLatency(summary, "total", totalHistogram);
+        if(warmUpHistogram.getCount() > 0) {
+            summary.append(String.format(Locale.ROOT, "Warm-up queries cold, and the other queries in the run (without res writing):%n"));
+            appendLatency(summary, "warmUp.cold", warmUpHistogram);
+            if(othersHistogram.getCount() > 0)
+                appendLatency(summary, "run.notReplayed", othersHistogram);
+        }
+
+        summary.append(String.format(Locale.ROOT, "Counts per query:%n"));
+        summary.append(String.format(Locale.ROOT, "%-20s %10s %10s %10s %10s %10s%n", "count", "p50", "p95", "p99", "mean", "max"));
+        for (Count count : Count.values()) {
+            LatencyHistogram h = countHistograms[count.ordinal()];
+            summary.append(String.format(Locale.ROOT, "%-20s %10d %10d %10d %10.1f %10d%n", count.name,
+                h.getValueAtPercentile(50), h.getValueAtPercentile(95), h.getValueAtPercentile(99), h.getMean(), h.getMax()));
+        }
+        System.out.print(summary);
+    }
+
+    private static void appendLatency(StringBuilder summary, String name, LatencyHistogram h) {
+        summary.append(String.format(Locale.ROOT, "%-20s %10s %10s %10s %10s %10s%n", name,
+            toMs(h.getValueAtPercentile(50)), toMs(h.getValueAtPercentile(95)), toMs(h.getValueAtPercentile(99)),
+            toMs((long) h.getMean()), toMs(h.getMax())));
+    }
+
+    private static String toMs(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -11,21 +11,48 @@ package FCRLM;
 import static common.CommonVariables.FIELD_BOW;
 import static common.CommonVariables.FIELD_FULL_BOW;
 import static common.CommonVariables.FIELD_ID;
+import FCRLM.PipelineMetrics.Count;
+import FCRLM.PipelineMetrics.QueryTimer;
+import FCRLM.PipelineMetrics.Stage;
+import common.CandidatePoolFilter;
+import common.CollectionStatsSnapshot;
+import common.DocLengthStore;
+import common.DocIdLookup;
+import common.DocumentVectorCache;
 import common.EnglishAnalyzerWithSmartStopword;
+import common.QueryPreparer;
+import common.ScoreAccumulator;
 import common.TRECQuery;
 import common.TRECQueryParser;
+import common.TRECRunReader;
+import common.TRECRunWriter;
+import common.TRECTopicReader;
+import common.TableFiles;
+import common.TermStatsCache;
+import common.WeightedDisjunctionQuery;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -42,6 +69,12 @@ import org.apache.lucene.search.similarities.NormalizationH2;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.xml.sax.SAXException;
 
 /**
  *
@@ -56,14 +89,24 @@ public class RelevanceBasedCausalModel {
     String          queryPath;               // path of the query file
     File            queryFile;               // the query file
     String          stopFilePath;
+    Directory       indexDir;                // the directory of the index, as set by index.directory
     IndexReader     indexReader;
     IndexSearcher   indexSearcher;
     String          resPath;                 // path of the res file
-    FileWriter      resFileWriter;           // the res file writer
+    TRECRunWriter   runWriter;               // the res file writer; null for a server
+    int             poolSize;                // size of the candidate pool for EQ1 and EQ2; 0 for full retrieval
+    boolean         poolOverlap;             // report the overlap of the pooled retrievals with the full ones
+    String          retrievalMode;           // execution of EQ1 and EQ2: boolean, maxscore or taat
+    int             taatDenseMaxDoc;         // largest index for the dense taat accumulator
+    LongAdder[]     poolOverlapCommon, poolOverlapTotal;    // for EQ1 and EQ2
+    FirstRoundCache firstRoundCache;         // initial retrievals and their feedback statistics; null if off
+    PipelineMetrics metrics;                 // latency of the stages of each query; null if metrics=false
+    DocLengthStore  docLengths;              // lengths of the documents in fieldForFeedback; null to take them from the vectors
+    DocIdLookup     docIdLookup;             // FIELD_ID of the hits; null to read it from the stored fields
+    Set<String>     resultFields;            // stored fields to be loaded for the res lines
     FileWriter      baselineFileWriter;      // the res file writer
     int             numHits;                 // number of document to retrieveWithExpansionTermsFromFile
     String          runName;                 // name of the run
-    List<TRECQuery> queries;
     File            indexFile;               // place where the index is stored
     Analyzer        analyzer;                // the analyzer
     boolean         boolIndexExists;         // boolean flag to indicate whether the index exists or not
@@ -75,15 +118,32 @@ public class RelevanceBasedCausalModel {
     long            vocSize;                 // vocabulary size
     //RM3             rm3;                   // reference to RM3 to use Relevance Feedback Model
     FactoredRLM     frlm;                    // reference to factored causal model     
-    HashMap<String, TopDocs> allTopDocsFromFileHashMap;     // For feedback from file, to contain all topdocs from file
+    HashMap<String, TopDocs> allTopDocsFromFileHashMap;     // For feedback from file, to contain all topdocs from file; null if off
     float           mixingLambda;            // mixing weight, used for doc-col weight distribution
     int             numFeedbackTermsTopical; // number of feedback terms at the first step
     int             numFeedbackTermsCausal;  // number of feedback terms at the second step
     int             numFeedbackDocs;         // number of feedback documents
     float           QMIX;                    // query mix to weight between P(w|R) and P(w|Q)
+    int             numThreads;              // number of queries to be processed in parallel
+    boolean         compactVectors;          // feedback on term-id based document vectors
+    boolean         joinRegression;          // compare the factored ratio stage with the original nested loop
+    ThreadLocal<FactoredRLM>     workerFrlm;         // FactoredRLM of each of the worker threads
+    ThreadLocal<TRECQueryParser> workerQueryParser;  // query parser of each of the worker threads
+    ThreadLocal<ScoreAccumulator> workerAccumulator; // taat accumulator of each of the worker threads
     
 
     public RelevanceBasedCausalModel(Properties prop) throws IOException, Exception {
+        this(prop, true);
+    }
+
+    /**
+     * @param prop The properties of the run
+     * @param batch true, to run the query file into a res file; false for a server,
+     * with no query file and no res file
+     * @throws IOException
+     * @throws Exception 
+     */
+    public RelevanceBasedCausalModel(Properties prop, boolean batch) throws IOException, Exception {
 
         this.prop = prop;
         /* property file loaded */
@@ -102,7 +162,8 @@ public class RelevanceBasedCausalModel {
         indexPath = prop.getProperty("indexPath");
         System.out.println("indexPath set to: " + indexPath);
         indexFile = new File(prop.getProperty("indexPath"));
-        Directory indexDir = FSDirectory.open(indexFile.toPath());
+        indexDir = openIndexDirectory(indexFile.toPath(), prop.getProperty("index.directory", "fs"),
+            Long.parseLong(prop.getProperty("index.ramMaxMB", "1024")) << 20);
 
         if (!DirectoryReader.indexExists(indexDir)) {
             System.err.println("Index doesn't exists in "+indexPath);
@@ -121,22 +182,43 @@ public class RelevanceBasedCausalModel {
         if (null != prop.getProperty("param2"))
             param2 = Float.parseFloat(prop.getProperty("param2"));
 
+        /* setting the size of the shared term statistics cache */
+        TermStatsCache.setMaxSize(Integer.parseInt(prop.getProperty("termStatsCacheSize",
+            Integer.toString(TermStatsCache.DEFAULT_MAX_SIZE))));
+        /* setting the memory budget of the shared document vector cache */
+        if(null != prop.getProperty("docVectorCacheMB"))
+            DocumentVectorCache.setMaxBytes(Long.parseLong(prop.getProperty("docVectorCacheMB")) << 20);
+
         /* setting indexReader and indexSearcher */
-        indexReader = DirectoryReader.open(FSDirectory.open(indexFile.toPath()));
+        indexReader = DirectoryReader.open(indexDir);
         indexSearcher = new IndexSearcher(indexReader);
         setSimilarityFunction(simFuncChoice, param1, param2);
         /* indexReader and searcher set */
 
+        /* opening the snapshot of the collection statistics of the feedback field
+           (built once per index commit), before any term statistics are looked up */
+        if(Boolean.parseBoolean(prop.getProperty("statsSnapshot", "false")))
+            CollectionStatsSnapshot.getInstance(indexReader, fieldForFeedback,
+                Paths.get(prop.getProperty("statsSnapshotDir", System.getProperty("java.io.tmpdir"))));
+        /* the latency histograms of the stages, and the per-query csv */
+        if(Boolean.parseBoolean(prop.getProperty("metrics", "true")))
+            metrics = new PipelineMetrics(prop.getProperty("metrics.csv"));
+
+        /* the lengths of the documents in the feedback field, for the smoothing */
+        if(Boolean.parseBoolean(prop.getProperty("docLengthStore", "false")))
+            docLengths = DocLengthStore.getInstance(indexReader, fieldForFeedback,
+                Paths.get(prop.getProperty("docLengthDir", System.getProperty("java.io.tmpdir"))));
+
         /* setting query path */
         queryPath = prop.getProperty("queryPath");
-        System.out.println("queryPath set to: " + queryPath);
-        queryFile = new File(queryPath);
+        if(batch) {
+            System.out.println("queryPath set to: " + queryPath);
+            queryFile = new File(queryPath);
+        }
         /* query path set */
 
-        /* constructing the query */
+        /* the query parser; the topics are read one at a time by retrieveAll() */
         trecQueryparser = new TRECQueryParser(queryPath, analyzer, fieldToSearch);
-        queries = constructQueries();
-        /* constructed the query */
 
         /* numFeedbackTerms = number of top terms to select in two steps */
         numFeedbackTermsTopical = Integer.parseInt(prop.getProperty("numFeedbackTermsTopical"));
@@ -145,22 +227,225 @@ public class RelevanceBasedCausalModel {
         numFeedbackDocs = Integer.parseInt(prop.getProperty("numFeedbackDocs"));
 
         /* setting mixing Lambda */
-        if(param1>0.99)
-            mixingLambda = 0.8f;
-        else
-            mixingLambda = param1;
+        mixingLambda = getMixingLambda(param1);
 
         numHits = Integer.parseInt(prop.getProperty("numHits","1000"));
+        /* the expanded queries can have more terms than the default limit */
+        BooleanQuery.setMaxClauseCount(4096);
         QMIX = Float.parseFloat(prop.getProperty("rm3.queryMix"));
         
+        compactVectors = Boolean.parseBoolean(prop.getProperty("compactVectors", "false"));
+        joinRegression = Boolean.parseBoolean(prop.getProperty("rm3.joinRegression", "false"));
+
+        /* the on-disk cache of the first round of the queries */
+        if(Boolean.parseBoolean(prop.getProperty("firstRoundCache", "false"))) {
+            if(compactVectors)
+                System.err.println("firstRoundCache: not used with compactVectors");
+            else if(batch && null != prop.getProperty("initialRunPath"))
+                System.err.println("firstRoundCache: not used with initialRunPath");
+            else if(!(indexDir instanceof FSDirectory))
+                System.err.println("firstRoundCache: not used with an index that is not in a file system directory");
+            else if(null == TableFiles.getCommitId(indexReader))
+                System.err.println("firstRoundCache: not used with an index whose commit has no id (older than Lucene 5.0)");
+            else
+                firstRoundCache = new FirstRoundCache(indexReader,
+                    Paths.get(prop.getProperty("firstRoundCacheDir", System.getProperty("java.io.tmpdir"))));
+        }
+
+        /* setting the candidate pool: EQ1 and EQ2 rescore the top poolSize documents
+           of the initial retrieval, instead of searching the full collection */
+        poolSize = Integer.parseInt(prop.getProperty("poolSize", "0"));
+        poolOverlap = Boolean.parseBoolean(prop.getProperty("pool.overlap", "false"));
+        poolOverlapCommon = new LongAdder[] {new LongAdder(), new LongAdder()};
+        poolOverlapTotal = new LongAdder[] {new LongAdder(), new LongAdder()};
+        if(poolSize > 0)
+            System.out.println("EQ1 and EQ2 will rescore a candidate pool of " + poolSize + " documents");
+
+        /* setting the execution of the expanded queries: with maxscore, the documents
+           that cannot make it to the top numHits are skipped; with taat, the terms are
+           scored one after the other into an accumulator (the scores of both are equal
+           to the boolean ones up to float rounding, so ties may reorder) */
+        retrievalMode = prop.getProperty("retrieval.mode", "boolean");
+        if("maxscore".equals(retrievalMode) && !WeightedDisjunctionQuery.supports(indexSearcher.getSimilarity(true))) {
+            System.err.println("retrieval.mode maxscore: no score bounds for " + indexSearcher.getSimilarity(true)
+                + "; using boolean");
+            retrievalMode = "boolean";
+        }
+        else if(!"maxscore".equals(retrievalMode) && !"taat".equals(retrievalMode) && !"boolean".equals(retrievalMode)) {
+            System.err.println("Unknown retrieval.mode: " + retrievalMode + "; using boolean");
+            retrievalMode = "boolean";
+        }
         frlm = new FactoredRLM(this);
 
+        /* setting the number of worker threads for parallel retrieval */
+        numThreads = Integer.parseInt(prop.getProperty("numThreads", "1"));
+        /* the dense taat accumulators of the threads take at most a share of the heap */
+        taatDenseMaxDoc = Integer.parseInt(prop.getProperty("taat.denseMaxDoc",
+            Integer.toString(ScoreAccumulator.getDefaultDenseMaxDoc(numThreads))));
+        final RelevanceBasedCausalModel rbcm = this;
+        workerFrlm = new ThreadLocal<FactoredRLM>() {
+            @Override
+            protected FactoredRLM initialValue() {
+                try {
+                    return new FactoredRLM(rbcm);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        workerQueryParser = new ThreadLocal<TRECQueryParser>() {
+            @Override
+            protected TRECQueryParser initialValue() {
+                try {
+                    return new TRECQueryParser(queryPath, analyzer, fieldToSearch);
+                } catch (SAXException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        workerAccumulator = new ThreadLocal<ScoreAccumulator>() {
+            @Override
+            protected ScoreAccumulator initialValue() {
+                return new ScoreAccumulator(taatDenseMaxDoc);
+            }
+        };
+        if(numThreads > 1)
+            System.out.println("Queries will be processed with " + numThreads + " threads");
+
         /* setting res path */
-        setRunName_ResFileName();
-        resFileWriter = new FileWriter(resPath);
-        System.out.println("Result will be stored in: "+resPath);
+        if(batch) {
+            setRunName_ResFileName();
+            runWriter = new TRECRunWriter(resPath, prop);
+            System.out.println("Result will be stored in: "+resPath);
+        }
         /* res path set */
+
+        /* setting the lookup of the docids of the hits: from the doc values of the
+           docid field if it has any, else (by default) from the stored fields, along
+           with the doc text; the table is built only with docidLookup=table */
+        resultFields = new HashSet<>();
+        if("stored".equals(prop.getProperty("docidLookup",
+            DocIdLookup.hasDocValues(indexReader, FIELD_ID) ? "table" : "stored")))
+            resultFields.add(FIELD_ID);
+        else
+            docIdLookup = DocIdLookup.getInstance(indexReader, FIELD_ID,
+                Paths.get(prop.getProperty("docidTableDir", System.getProperty("java.io.tmpdir"))));
+        if(null != runWriter && runWriter.needsDocText())
+            resultFields.add(FIELD_BOW);
+        resultFields = Collections.unmodifiableSet(resultFields);
+
+        /* setting the initial ranking of the queries from a run file: the top documents
+           that the feedback and the candidate pool need are kept for each query */
+        if(batch && null != prop.getProperty("initialRunPath")) {
+            DocIdLookup lookup = (null != docIdLookup) ? docIdLookup : DocIdLookup.getInstance(indexReader, FIELD_ID,
+                Paths.get(prop.getProperty("docidTableDir", System.getProperty("java.io.tmpdir"))));
+            allTopDocsFromFileHashMap = TRECRunReader.read(prop.getProperty("initialRunPath"), Integer.parseInt(
+                prop.getProperty("initialRunDepth", Integer.toString(Math.max(numFeedbackDocs, poolSize)))), lookup);
+        }
+
+        /* warming up the index and the caches, before the timed queries */
+        if(Boolean.parseBoolean(prop.getProperty("warmup", "false")))
+            warmUp(prop.getProperty("warmup.files", "tim,tip,tvx,tvd,fdx,fdt,doc,nvd,cfs").split(","),
+                Integer.parseInt(prop.getProperty("warmup.queries", "10")));
     }
+
+    /**
+     * Opens the directory of the index.
+     * @param path Path of the index
+     * @param type fs (FSDirectory.open(): the best for the platform), mmap, niofs, or ram:
+     * a copy of the index on the heap, if it is no larger than 'ramMaxBytes' (else fs)
+     * @param ramMaxBytes Largest index to copy on the heap
+     * @return The directory
+     * @throws IOException 
+     */
+    private static Directory openIndexDirectory(Path path, String type, long ramMaxBytes) throws IOException {
+
+        if("mmap".equals(type))
+            return new MMapDirectory(path);
+        if("niofs".equals(type))
+            return new NIOFSDirectory(path);
+        if(!"fs".equals(type) && !"ram".equals(type))
+            System.err.println("Unknown index.directory: " + type + "; using fs");
+
+        Directory fsDir = FSDirectory.open(path);
+        if(!"ram".equals(type))
+            return fsDir;
+        long size = 0;
+        for (String file : fsDir.listAll())
+            size += fsDir.fileLength(file);
+        if(size > ramMaxBytes) {
+            System.err.println("index.directory ram: the index (" + (size >> 20) + " MB) is larger than index.ramMaxMB; using fs");
+            return fsDir;
+        }
+        long start = System.currentTimeMillis();
+        Directory ramDir = new RAMDirectory((FSDirectory) fsDir, IOContext.READONCE);
+        fsDir.close();
+        System.out.println("Index (" + (size >> 20) + " MB) copied to the heap in " + (System.currentTimeMillis() - start) + " ms");
+        return ramDir;
+    }
+
+    /**
+     * Warms up the index before the timed queries: the files of the index with the
+     * given extensions (by default, the term dictionary, the term vectors, the stored
+     * fields, the postings of the documents, the norms and the compound files) are
+     * read through, to bring them in the page cache; then the first topics of the
+     * query file are run, with the results discarded, which also fills the shared
+     * term statistics and document vector caches. The latency of these queries is
+     * recorded as their cold latency; with metrics, it is compared with the latency
+     * in the run of the other queries only, as the replayed ones find their own
+     * terms and documents in the caches. The gain of the warm-up on the whole run is
+     * to be measured against a run without it.
+     * @param extensions Extensions of the files to read through
+     * @param numQueries Number of topics to run; 0 for none
+     * @throws Exception 
+     */
+    void warmUp(String[] extensions, int numQueries) throws Exception {
+
+        long start = System.currentTimeMillis();
+        Set<String> touched = new HashSet<>();
+        for (String extension : extensions)
+            touched.add(extension.trim());
+        long bytes = 0;
+        int files = 0;
+        byte[] buffer = new byte[1 << 16];
+        for (String file : indexDir.listAll()) {
+            if(!touched.contains(file.substring(file.lastIndexOf('.') + 1)))
+                continue;
+            try (IndexInput input = indexDir.openInput(file, IOContext.READ)) {
+                long length = input.length();
+                for (long read = 0; read < length; read += buffer.length)
+                    input.readBytes(buffer, 0, (int) Math.min(buffer.length, length - read));
+                bytes += length;
+                files++;
+            }
+        }
+        long touchMs = System.currentTimeMillis() - start;
+
+        int queries = 0;
+        if(numQueries > 0 && null != queryPath) {
+            try (TRECTopicReader topics = new TRECTopicReader(queryPath)) {
+                while(queries < numQueries && topics.hasNext()) {
+                    TRECQuery query = topics.next();
+                    QueryTimer timer = new QueryTimer(query.qid);
+                    Expansion expansion = expand(query, frlm, trecQueryparser, timer, new StringBuilder(), true);
+                    getResLines(query.qid, expansion.topDocs.scoreDocs, runName);
+                    timer.lap(Stage.STORED_FIELDS);
+                    if(null != metrics)
+                        metrics.recordWarmUp(timer);
+                    queries++;
+                }
+            }
+            /* the counters of the run are of the timed queries only */
+            for (int stage = 0; stage < 2; stage++) {
+                poolOverlapCommon[stage].reset();
+                poolOverlapTotal[stage].reset();
+            }
+            FactoredRLM.joinRegressionChecks.reset();
+            FactoredRLM.joinRegressionMismatches.reset();
+        }
+        System.out.println("Warm-up: " + files + " index files (" + (bytes >> 20) + " MB) read in " + touchMs + " ms, "
+            + queries + " queries run in " + (System.currentTimeMillis() - start - touchMs) + " ms");
+    } // ends warmUp()
     
 
     /**
@@ -171,162 +456,470 @@ public class RelevanceBasedCausalModel {
      */
     private void setSimilarityFunction(int choice, float param1, float param2) {
 
+        Similarity similarity = getSimilarityFunction(choice, param1, param2);
+        if(null != similarity)
+            indexSearcher.setSimilarity(similarity);
+    } // ends setSimilarityFunction()
+
+    /**
+     * Returns the similarity function with parameter(s)
+     * @param choice similarity function selection flag
+     * @param param1 similarity function parameter 1
+     * @param param2 similarity function parameter 2
+     * @return The similarity; null for an unknown choice
+     */
+    Similarity getSimilarityFunction(int choice, float param1, float param2) {
+
             switch(choice) {
             case 0:
-                indexSearcher.setSimilarity(new DefaultSimilarity());
                 System.out.println("Similarity function set to DefaultSimilarity");
-                break;
+                return new DefaultSimilarity();
             case 1:
-                indexSearcher.setSimilarity(new BM25Similarity(param1, param2));
                 System.out.println("Similarity function set to BM25Similarity"
                     + " with parameters: " + param1 + " " + param2);
-                break;
+                return new BM25Similarity(param1, param2);
             case 2:
-                indexSearcher.setSimilarity(new LMJelinekMercerSimilarity(param1));
                 System.out.println("Similarity function set to LMJelinekMercerSimilarity"
                     + " with parameter: " + param1);
-                break;
+                return new LMJelinekMercerSimilarity(param1);
             case 3:
-                indexSearcher.setSimilarity(new LMDirichletSimilarity(param1));
                 System.out.println("Similarity function set to LMDirichletSimilarity"
                     + " with parameter: " + param1);
-                break;
+                return new LMDirichletSimilarity(param1);
             case 4:
-                indexSearcher.setSimilarity(new DFRSimilarity(new BasicModelIF(), new AfterEffectB(), new NormalizationH2()));
                 System.out.println("Similarity function set to DFRSimilarity with default parameters");
-                break;
+                return new DFRSimilarity(new BasicModelIF(), new AfterEffectB(), new NormalizationH2());
         }
-    } // ends setSimilarityFunction()
+        return null;
+    } // ends getSimilarityFunction()
     
 
+    /**
+     * Returns the mixing weight of the smoothing of the feedback documents for the
+     * similarity parameter: param1 itself, or 0.8 if param1 is not in [0, 0.99].
+     * @param param1 similarity function parameter 1
+     * @return The mixing lambda
+     */
+    static float getMixingLambda(float param1) {
+        return (param1>0.99) ? 0.8f : param1;
+    }
+
+
     /**
      * Sets runName and resPath variables depending on similarity functions.
      */
     private void setRunName_ResFileName() {
 
-        Similarity s = indexSearcher.getSimilarity(true);
-        runName = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTermsTopical+"-C"+numFeedbackTermsCausal;
-        runName += "-queryMix-"+QMIX;
-        runName += "-" + fieldToSearch + "-" + fieldForFeedback;
-        runName = runName.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
-        if(null == prop.getProperty("resPath"))
-            resPath = "/home/suchana/";
-        else
-            resPath = prop.getProperty("resPath");
-        resPath = resPath+queryFile.getName()+"-"+runName + ".res";
+        runName = getRunName(indexSearcher.getSimilarity(true), numFeedbackDocs, numFeedbackTermsTopical,
+            numFeedbackTermsCausal, QMIX);
+        resPath = getResPath(runName);
     } // ends setRunName_ResFileName()
 
     /**
-     * Parses the query from the file and makes a List<TRECQuery> 
-     *  containing all the queries (RAW query read)
-     * @return A list with the all the queries
-     * @throws Exception 
+     * Returns the name of the run with the similarity function and the feedback parameters.
+     * @param s The similarity function
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTermsTopical Number of feedback terms at the first step
+     * @param numFeedbackTermsCausal Number of feedback terms at the second step
+     * @param queryMix rm3.queryMix
+     * @return The run name
      */
-    private List<TRECQuery> constructQueries() throws Exception {
+    String getRunName(Similarity s, int numFeedbackDocs, int numFeedbackTermsTopical, int numFeedbackTermsCausal, float queryMix) {
 
-        trecQueryparser.queryFileParse();
-        return trecQueryparser.queries;
-    } // ends constructQueries()
+        String name = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTermsTopical+"-C"+numFeedbackTermsCausal;
+        name += "-queryMix-"+queryMix;
+        name += "-" + fieldToSearch + "-" + fieldForFeedback;
+        return name.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
+    }
+
+    /**
+     * Returns the path of the res file of the run.
+     * @param runName The run name
+     * @return The res file path
+     */
+    String getResPath(String runName) {
+
+        String path;
+        if(null == prop.getProperty("resPath"))
+            path = "/home/suchana/";
+        else
+            path = prop.getProperty("resPath");
+        return path+queryFile.getName()+"-"+runName + ".res";
+    }
+
+    /**
+     * Prints the statistics of the run: the document vector cache, the res
+     * file writes, the overlap of the candidate pool, and the outcome of the factored ratio checks, if rm3.joinRegression is set.
+     * The summary of the stage latencies follows, unless metrics=false.
+     * @throws IOException 
+     */
+    void showRunStat() throws IOException {
+
+        DocumentVectorCache.getInstance(indexReader, fieldForFeedback).showCacheStat();
+        runWriter.showWriteStat();
+        if(poolSize > 0 && poolOverlap)
+            for (int stage = 0; stage < 2; stage++) {
+                long total = poolOverlapTotal[stage].sum();
+                System.out.println("Candidate pool: overlap with full retrieval (EQ" + (stage + 1) + "): "
+                    + ((total > 0) ? (float)poolOverlapCommon[stage].sum() / (float)total : 0));
+            }
+        if(joinRegression)
+            System.out.println("rm3.joinRegression: checked: " + FactoredRLM.joinRegressionChecks.sum()
+                + " mismatched: " + FactoredRLM.joinRegressionMismatches.sum());
+        if(null != metrics)
+            metrics.showSummary();
+    }
     
 
+    /**
+     * Runs FCRLM for all the queries and writes the res file in the order of
+     * the query file. The topics are streamed from the query file by a
+     * TRECTopicReader, so that retrieval starts with the first topic, and only
+     * the topics in process are in memory. With numThreads greater than 1, the
+     * queries are processed in parallel by a pool of workers; each worker owns
+     * its FactoredRLM and TRECQueryParser, as both of them keep per-query state.
+     * @throws Exception 
+     */
     public void retrieveAll() throws Exception {
 
-        ScoreDoc[] hits;
-        TopDocs topDocsPRD1, topDocsPRD2, topDocsFinal;
-        TopScoreDocCollector collector;
-        HashMap<String, WordProbability> hashmap_PwGivenR, hashmap_PwGivenR_causal;;
+        try (TRECTopicReader topics = new TRECTopicReader(queryPath)) {
+            retrieveAll(topics);
+        }
+    } // ends retrieveAll
 
-        for (TRECQuery query : queries) {
-            collector = TopScoreDocCollector.create(numHits);
-            Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+    private void retrieveAll(TRECTopicReader topics) throws Exception {
+
+        if(numThreads <= 1) {
+            while(topics.hasNext()) {
+                TRECQuery query = topics.next();
+                QueryTimer timer = new QueryTimer(query.qid);
+                writeResult(retrieve(query, frlm, trecQueryparser, timer), timer);
+            }
+            runWriter.close();
+            showRunStat();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        /* results are taken out from the head of the window, so the res file
+           gets written in the query order irrespective of the finishing order;
+           the next topic is read only when there is room in the window */
+        ArrayDeque<Future<String>> window = new ArrayDeque<>();
+        ArrayDeque<QueryTimer> windowTimers = new ArrayDeque<>();
+        int windowSize = numThreads * 4;
+
+        try {
+            while(topics.hasNext()) {
+                final TRECQuery query = topics.next();
+                final QueryTimer timer = new QueryTimer(query.qid);
+                window.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return retrieve(query, workerFrlm.get(), workerQueryParser.get(), timer);
+                    }
+                }));
+                windowTimers.add(timer);
+                if(window.size() >= windowSize)
+                    writeResult(window.poll().get(), windowTimers.poll());
+            }
+            while(!window.isEmpty())
+                writeResult(window.poll().get(), windowTimers.poll());
+            runWriter.close();
+            showRunStat();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the res file lines of a query, and records the timings of the query.
+     * @param res The res file lines of the query
+     * @param timer The timer of the query
+     * @throws IOException 
+     */
+    private void writeResult(String res, QueryTimer timer) throws IOException {
+
+        timer.start();
+        runWriter.write(res);
+        timer.lap(Stage.RES_WRITE);
+        if(null != metrics)
+            metrics.record(timer);
+    }
+
+    /**
+     * Performs the initial retrieval, the two levels of feedback estimation
+     * and the final retrieval for a single query.
+     * @param query The query
+     * @param frlm FactoredRLM to be used for the feedback estimation
+     * @param trecQueryparser Parser to analyze the query
+     * @return The res file lines of the query in TREC format (with doc text as per res.docText)
+     * @throws Exception 
+     */
+    public String retrieve(TRECQuery query, FactoredRLM frlm, TRECQueryParser trecQueryparser) throws Exception {
+        return retrieve(query, frlm, trecQueryparser, new QueryTimer(query.qid));
+    }
+
+    /**
+     * retrieve(), with the time taken by each stage, and the counts of the query,
+     * set in 'timer'.
+     * @param query The query
+     * @param frlm FactoredRLM to be used for the feedback estimation
+     * @param trecQueryparser Parser to analyze the query
+     * @param timer Timer of the query
+     * @return The res file lines of the query in TREC format (with doc text as per res.docText)
+     * @throws Exception 
+     */
+    public String retrieve(TRECQuery query, FactoredRLM frlm, TRECQueryParser trecQueryparser, QueryTimer timer) throws Exception {
+
+        StringBuilder log = new StringBuilder();    // printed at once, to keep the output of parallel queries apart
+        Expansion expansion = expand(query, frlm, trecQueryparser, timer, log, true);
+        System.out.println(log);
+
+        ScoreDoc[] hits = expansion.topDocs.scoreDocs;
+            if(hits == null)
+            System.out.println("Nothing found");
+
+        String res = getResLines(query.qid, hits, runName);
+        timer.lap(Stage.STORED_FIELDS);
+        return res;
+    } // ends retrieve
+
+    /**
+     * Expansion of a query: the terms of EQ1 and EQ2, and the final hits.
+     */
+    static class Expansion {
+        Query                            luceneQuery;   // the analyzed query
+        HashMap<String, WordProbability> eq1Terms;      // with the weights of EQ1 as expansionWeight
+        HashMap<String, WordProbability> eq2Terms;      // with the weights of EQ2 as expansionWeight
+        TopDocs                          topDocs;       // of EQ2; null if it is not retrieved
+    }
 
-            System.out.println("\n" + query.qid +": Initial query: " + luceneQuery.toString(fieldToSearch));
+    /**
+     * The initial retrieval, the two levels of feedback estimation and, if
+     * 'finalRetrieval', the final retrieval for a single query; with the parameters
+     * set in 'frlm'.
+     * @param query The query
+     * @param frlm FactoredRLM to be used for the feedback estimation
+     * @param trecQueryparser Parser to analyze the query
+     * @param timer Timer of the query
+     * @param log Log of the query
+     * @param finalRetrieval false, to only estimate EQ2, without retrieving with it
+     * @return The expansion of the query
+     * @throws Exception 
+     */
+    Expansion expand(TRECQuery query, FactoredRLM frlm, TRECQueryParser trecQueryparser, QueryTimer timer,
+        StringBuilder log, boolean finalRetrieval) throws Exception {
 
-            /* PRF - initial retrieval performed */
+        ScoreDoc[] hits;
+        TopDocs topDocsPRD1, topDocsPRD2;
+        TopScoreDocCollector collector;
+        HashMap<String, WordProbability> hashmap_PwGivenR, hashmap_PwGivenR_causal;
+        Expansion expansion = new Expansion();
+
+        DocumentVectorCache docVectorCache = DocumentVectorCache.getInstance(indexReader, fieldForFeedback);
+        long termVectorsRead = docVectorCache.getThreadReadCount();
+        timer.start();
+
+        collector = TopScoreDocCollector.create(Math.max(numHits, poolSize));
+        Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+        expansion.luceneQuery = luceneQuery;
+
+        log.append("\n").append(query.qid).append(": Initial query: ").append(luceneQuery.toString(fieldToSearch)).append("\n");
+
+        /* the initial retrieval and its feedback statistics are read from the first
+           round cache, if the query was run before with the same settings */
+        String firstRoundKey = (null == firstRoundCache) ? null : getFirstRoundKey(luceneQuery, frlm);
+        topDocsPRD1 = (null == firstRoundKey) ? null : firstRoundCache.load(firstRoundKey, frlm);
+        boolean firstRoundCached = (null != topDocsPRD1);
+
+        /* or from the initial run file; a query that is not in it is retrieved */
+        if(null != allTopDocsFromFileHashMap) {
+            topDocsPRD1 = allTopDocsFromFileHashMap.get(query.qid);
+            if(null == topDocsPRD1)
+                log.append(query.qid).append(": not in the initial run file; retrieved\n");
+        }
+
+        /* PRF - initial retrieval performed; with a candidate pool, it is wide
+           enough to give the pool, to which EQ1 and EQ2 are restricted */
+        if(null == topDocsPRD1) {
             indexSearcher.search(luceneQuery, collector);
             topDocsPRD1 = collector.topDocs();
-            //System.out.println("docs retrieved : " + topDocsPRD1.totalHits);
-            /* PRF */
-
-            StringBuffer resBuffer;
-            
-            frlm.setFeedbackStats(topDocsPRD1, luceneQuery.toString(fieldToSearch).split(" "), this);
-            
-            /**
-             * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
-             * keyed by the term with P(w|R) as the value.
-             * T1 = normalized RM1(D1)--<sorted> 
-             * T1'= normalized top n terms of T1--<with highest weights>
-             * EQ1 = RM3(T1',Q,alpha) and retrieve
-             */
-
-            hashmap_PwGivenR = frlm.RM3(query, topDocsPRD1, luceneQuery.toString(fieldToSearch).split(" "));
-            /* EQ1 = RM3(T1',Q, alpha) */
-            
-            BooleanQuery booleanQuery;
-
-            booleanQuery = frlm.getExpandedQuery(hashmap_PwGivenR, query);
-            System.out.println("\nRe-retrieval after 1st level estimation with EQ1 :");
-            System.out.println(booleanQuery.toString(fieldToSearch));
-            collector = TopScoreDocCollector.create(numHits);
-            indexSearcher.search(booleanQuery, collector);      //retrieve with EQ1
-            
-            /* D2 = top k docs of search (EQ1,C) */
-            topDocsPRD2 = collector.topDocs(); 
-            hits = topDocsPRD2.scoreDocs;
-                if(hits == null)
-                System.out.println("Nothing found");
-
-            int hits_length = hits.length;
-
-            frlm.setFeedbackStats(topDocsPRD2, booleanQuery.toString(fieldToSearch).split(" "), this);
-            
-            /**
-             * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
-             * keyed by the term with P(w|R) as the value.
-             * 
-             * T2 = normalized RM1(D2)---<sorted>
-             * T2'= normalized top n terms of T2 that are overlapping with T1'
-             * T2"= {t2 / t1} ; t1=term from T1' & t2=term from T2'
-             * EQ2 = RM3(T2",Q,alpha) and retrieve
-             **/
-            
-            hashmap_PwGivenR_causal = frlm.RM3_overloaded(booleanQuery.toString(fieldToSearch).split(" "), topDocsPRD2, 
-                    luceneQuery.toString(fieldToSearch).split(" "), hashmap_PwGivenR);
-            
-            BooleanQuery booleanQuery_causal;
-
-            booleanQuery_causal = frlm.getExpandedQuery_Overloaded(hashmap_PwGivenR_causal, booleanQuery.toString(fieldToSearch).split(" "));
-            System.out.println("Final-retrieval after causal estimation with EQ2 :");
-            System.out.println(booleanQuery_causal.toString(fieldToSearch));
+        }
+        //System.out.println("docs retrieved : " + topDocsPRD1.totalHits);
+        /* PRF */
+        CandidatePoolFilter pool = (poolSize > 0) ? new CandidatePoolFilter(topDocsPRD1.scoreDocs, poolSize) : null;
+        timer.lap(Stage.INITIAL_SEARCH);
+
+        String[] analyzedQuery = QueryPreparer.getQueryTerms(luceneQuery, fieldToSearch);
+        if(!firstRoundCached) {
+            frlm.setFeedbackStats(topDocsPRD1, analyzedQuery, this);
+            if(null != firstRoundKey)
+                firstRoundCache.store(firstRoundKey, topDocsPRD1, frlm);
+        }
+        timer.set(Count.FEEDBACK_TERMS_1, frlm.getNumFeedbackTerms());
+        timer.lap(Stage.FEEDBACK_STATS_1);
+
+        /**
+         * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
+         * keyed by the term with P(w|R) as the value.
+         * T1 = normalized RM1(D1)--<sorted> 
+         * T1'= normalized top n terms of T1--<with highest weights>
+         * EQ1 = RM3(T1',Q,alpha) and retrieve
+         */
+
+        hashmap_PwGivenR = frlm.RM3(query, topDocsPRD1, analyzedQuery);
+        /* EQ1 = RM3(T1',Q, alpha) */
+
+        BooleanQuery booleanQuery;
+
+        booleanQuery = frlm.getExpandedQuery(hashmap_PwGivenR, query);
+        timer.set(Count.EQ1_CLAUSES, booleanQuery.clauses().size());
+        timer.lap(Stage.RM3);
+        log.append("\nRe-retrieval after 1st level estimation with EQ1 :\n");
+        log.append(booleanQuery.toString(fieldToSearch)).append("\n");
+        /* D2 = top k docs of search (EQ1,C) */
+        topDocsPRD2 = search("taat".equals(retrievalMode) ? new WeightedTermsQuery(fieldToSearch, hashmap_PwGivenR, false) : booleanQuery,
+            pool, 0, log);     //retrieve with EQ1
+        timer.lap(Stage.EQ1_SEARCH);
+        hits = topDocsPRD2.scoreDocs;
+            if(hits == null)
+            log.append("Nothing found\n");
+
+        frlm.setFeedbackStats(topDocsPRD2, booleanQuery.toString(fieldToSearch).split(" "), this);
+        timer.set(Count.FEEDBACK_TERMS_2, frlm.getNumFeedbackTerms());
+        timer.set(Count.TERM_VECTORS_READ, docVectorCache.getThreadReadCount() - termVectorsRead);
+        timer.lap(Stage.FEEDBACK_STATS_2);
+
+        /**
+         * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
+         * keyed by the term with P(w|R) as the value.
+         * 
+         * T2 = normalized RM1(D2)---<sorted>
+         * T2'= normalized top n terms of T2 that are overlapping with T1'
+         * T2"= {t2 / t1} ; t1=term from T1' & t2=term from T2'
+         * EQ2 = RM3(T2",Q,alpha) and retrieve
+         **/
+
+        hashmap_PwGivenR_causal = frlm.RM3_overloaded(booleanQuery.toString(fieldToSearch).split(" "), topDocsPRD2, 
+                analyzedQuery, hashmap_PwGivenR);
+
+        BooleanQuery booleanQuery_causal;
+
+        booleanQuery_causal = frlm.getExpandedQuery_Overloaded(hashmap_PwGivenR_causal, booleanQuery.toString(fieldToSearch).split(" "));
+        timer.set(Count.EQ2_CLAUSES, booleanQuery_causal.clauses().size());
+        timer.lap(Stage.RM3_OVERLOADED);
+        log.append("Final-retrieval after causal estimation with EQ2 :\n");
+        log.append(booleanQuery_causal.toString(fieldToSearch));
+        expansion.eq1Terms = hashmap_PwGivenR;
+        expansion.eq2Terms = hashmap_PwGivenR_causal;
+        if(finalRetrieval)
+            expansion.topDocs = search("taat".equals(retrievalMode) ? new WeightedTermsQuery(fieldToSearch, hashmap_PwGivenR_causal, true) : booleanQuery_causal,
+                pool, 1, log);
+        timer.lap(Stage.EQ2_SEARCH);
+        return expansion;
+    } // ends expand()
+
+    /**
+     * Returns the res file lines of the hits of a query, in TREC format (with doc text
+     * as per res.docText); only the stored fields in resultFields are decoded, if any.
+     * Without a res file (a server), the docids and stored fields are read all the
+     * same, and no line is made.
+     * @param qid The query id
+     * @param hits The final hits
+     * @param runName The run name
+     * @return The res file lines; empty without a res file
+     * @throws IOException 
+     */
+    String getResLines(String qid, ScoreDoc[] hits, String runName) throws IOException {
+
+        StringBuilder resBuffer = new StringBuilder();
+        for (int i = 0; i < hits.length; ++i) {
+            int docId = hits[i].doc;
+            Document d = resultFields.isEmpty() ? null : indexReader.document(docId, resultFields);
+            String docid = (null != docIdLookup) ? docIdLookup.getDocid(docId) : d.get(FIELD_ID);
+            if(null != runWriter)
+                runWriter.appendLine(resBuffer, qid, docid, i, hits[i].score, runName,
+                    resultFields.contains(FIELD_BOW) ? d.get(FIELD_BOW) : null);
+        }
+        return resBuffer.toString();
+    }
+
+    /**
+     * Returns the key of the first round of the query in the first round cache: all
+     * that the initial retrieval and setFeedbackStats() depend on, but the index.
+     * @param luceneQuery The analyzed query
+     * @param frlm FactoredRLM with the feedback parameters
+     * @return The key
+     */
+    private String getFirstRoundKey(Query luceneQuery, FactoredRLM frlm) {
+
+        return luceneQuery.toString() + "|" + indexSearcher.getSimilarity(true) + "|" + fieldToSearch
+            + "|" + fieldForFeedback + "|hits=" + Math.max(numHits, poolSize)
+            + "|D=" + frlm.numFeedbackDocs + "|lambda=" + frlm.mixingLambda;
+    }
+
+    /**
+     * Retrieves the top numHits documents for an expanded query; only the documents
+     * of the candidate pool are scored, if there is a pool. Without a pool, the query
+     * is run as a WeightedDisjunctionQuery with retrieval.mode maxscore, and term-at-a-time
+     * if it is a WeightedTermsQuery (retrieval.mode taat). With pool.overlap, the
+     * query is also run on the full collection, to report the fraction of its top
+     * numHits found in the pool.
+     * @param query The expanded query (EQ1 or EQ2)
+     * @param pool The candidate pool; null to search the full collection
+     * @param stage 0 for EQ1, 1 for EQ2
+     * @param log Log of the query
+     * @return The top documents
+     * @throws IOException 
+     */
+    private TopDocs search(Query query, CandidatePoolFilter pool, int stage, StringBuilder log) throws IOException {
+        return search(indexSearcher, query, pool, stage, log);
+    }
+
+    /**
+     * search() with 'searcher', in place of indexSearcher.
+     * @param searcher The searcher, with the similarity to score with
+     * @param query The expanded query (EQ1 or EQ2)
+     * @param pool The candidate pool; null to search the full collection
+     * @param stage 0 for EQ1, 1 for EQ2
+     * @param log Log of the query
+     * @return The top documents
+     * @throws IOException 
+     */
+    TopDocs search(IndexSearcher searcher, Query query, CandidatePoolFilter pool, int stage, StringBuilder log) throws IOException {
+
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits);
+        if(null == pool) {
+            if(query instanceof WeightedTermsQuery)
+                return ((WeightedTermsQuery) query).search(searcher, numHits, workerAccumulator.get());
+            if("maxscore".equals(retrievalMode))
+                return new WeightedDisjunctionQuery((BooleanQuery) query).search(searcher, numHits);
+            searcher.search(query, collector);
+            return collector.topDocs();
+        }
+
+        searcher.search(new FilteredQuery(query, pool, FilteredQuery.LEAP_FROG_FILTER_FIRST_STRATEGY), collector);
+        TopDocs topDocs = collector.topDocs();
+
+        if(poolOverlap) {
             collector = TopScoreDocCollector.create(numHits);
-            indexSearcher.search(booleanQuery_causal, collector);
-
-            topDocsFinal = collector.topDocs();
-            hits = topDocsFinal.scoreDocs;
-                if(hits == null)
-                System.out.println("Nothing found");
-
-            int hits_length_level2 = hits.length;
-
-            resFileWriter = new FileWriter(resPath, true);
-
-            /* res file in TREC format with doc text (7 columns) */
-            resBuffer = new StringBuffer();
-            for (int i = 0; i < hits_length_level2; ++i) {
-                int docId = hits[i].doc;
-                Document d = indexSearcher.doc(docId);
-                resBuffer.append(query.qid).append("\tQ0\t").
-                append(d.get(FIELD_ID)).append("\t").
-                append((i)).append("\t").
-                append(hits[i].score).append("\t").
-                append(runName).append("\t").
-                append(d.get(FIELD_BOW)).append("\n");
-            }
-            resFileWriter.write(resBuffer.toString());
-            resFileWriter.close();
-        } // ends for each query
-    } // ends retrieveAll
+            searcher.search(query, collector);
+            ScoreDoc[] full = collector.topDocs().scoreDocs;
+            HashSet<Integer> pooled = new HashSet<>();
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs)
+                pooled.add(scoreDoc.doc);
+            int common = 0;
+            for (ScoreDoc scoreDoc : full)
+                if(pooled.contains(scoreDoc.doc))
+                    common++;
+            poolOverlapCommon[stage].add(common);
+            poolOverlapTotal[stage].add(full.length);
+            log.append("\nCandidate pool (").append(pool.size()).append(" docs): overlap with full retrieval (EQ")
+                .append(stage + 1).append("): ").append(common).append("/").append(full.length).append("\n");
+        }
+        return topDocs;
+    } // ends search
     
 
     public static void main(String[] args) throws IOException, Exception {
@@ -341,7 +934,38 @@ public class RelevanceBasedCausalModel {
                 + "6. numFeedbackTermsTopical: number of feedback terms to use at 1st level"
                 + "7. numFeedbackTermsCausal: number of feedback terms to use at 2nd level"
                 + "8. rm3.queryMix (0.0-1.0): query mix to weight between P(w|R) and P(w|Q)\n"
-                + "9. similarityFunction: 0.DefaultSimilarity, 1.BM25Similarity, 2.LMJelinekMercerSimilarity, 3.LMDirichletSimilarity\n";               
+                + "9. similarityFunction: 0.DefaultSimilarity, 1.BM25Similarity, 2.LMJelinekMercerSimilarity, 3.LMDirichletSimilarity\n"
+                + "Optional fields:\n"
+                + "numThreads: number of queries to be processed in parallel (default 1)\n"
+                + "termStatsCacheSize: number of terms in the shared term statistics cache\n"
+                + "docVectorCacheMB: memory budget (in MB) of the shared document vector cache\n"
+                + "compactVectors: true, to estimate feedback on term-id based document vectors\n"
+                + "rm3.joinRegression: true, to check the factored ratio stage against the original nested loop\n"
+                + "res.docText: full, truncate or none: document text column of the res file (default full)\n"
+                + "res.docTextLength, res.flush (buffer, query or interval), res.flushIntervalMs, res.bufferKB, res.queueSize\n"
+                + "docidLookup: table or stored: source of the docids of the hits (default: doc values if the docid field has them, else stored)\n"
+                + "docidTableDir: directory to keep the docid table in (default java.io.tmpdir)\n"
+                + "statsSnapshot: true, to read the term statistics from a memory-mapped snapshot\n"
+                + "statsSnapshotDir: directory to keep the statistics snapshot in (default java.io.tmpdir)\n"
+                + "docLengthStore: true, to read the document lengths from a memory-mapped table\n"
+                + "docLengthDir: directory to keep the document length table in (default java.io.tmpdir)\n"
+                + "firstRoundCache: true, to keep the initial retrieval and its feedback statistics on disk, for reruns\n"
+                + "firstRoundCacheDir: directory of the first round cache (default java.io.tmpdir)\n"
+                + "metrics: false, to not time the stages of the queries (default true)\n"
+                + "metrics.csv: path of a csv file of the timings and counts of each query\n"
+                + "poolSize: EQ1 and EQ2 rescore the top poolSize documents of the initial retrieval (default 0: off)\n"
+                + "pool.overlap: true, to report the overlap of the pooled retrievals with the full ones\n"
+                + "retrieval.mode: boolean (default), maxscore or taat: execution of EQ1 and EQ2 (maxscore skips documents)\n"
+                + "taat.denseMaxDoc: largest index (maxDoc) for the dense taat accumulator, else sparse (default: the arrays of all the threads in an eighth of the heap)\n"
+                + "Parameter sweep: numFeedbackDocs, numFeedbackTermsTopical, numFeedbackTermsCausal, rm3.queryMix\n"
+                + "and param1 can be lists of values and ranges (start:end:step), e.g. numFeedbackDocs=10,20:50:10;\n"
+                + "all the configurations are run in one pass, with one res file each\n"
+                + "initialRunPath: TREC run file to take the initial ranking of the queries from, instead of retrieving it\n"
+                + "initialRunDepth: documents kept per query of the initial run (default max(numFeedbackDocs, poolSize))\n"
+                + "index.directory: fs (default), mmap, niofs or ram (a heap copy of an index of at most index.ramMaxMB, default 1024)\n"
+                + "warmup: true, to read through the index files (warmup.files: extensions) and run warmup.queries topics (default 10) first\n"
+                + "server.port: serve queries over HTTP (GET /expand?q=..., /status) instead of running the query file\n"
+                + "server.host (default localhost), server.maxConcurrent, server.maxQueued, server.queueTimeoutMs, server.backlog\n";               
                 
         Properties prop = new Properties();
 
@@ -352,6 +976,14 @@ public class RelevanceBasedCausalModel {
             System.exit(1);
         }
         prop.load(new FileReader(args[0]));
+        if(null != prop.getProperty("server.port")) {
+            new ExpansionServer(prop).start();
+            return;
+        }
+        if(ParameterSweep.isSweep(prop)) {
+            new ParameterSweep(prop).sweepAll();
+            return;
+        }
         RelevanceBasedCausalModel rbcm = new RelevanceBasedCausalModel(prop);
 
         rbcm.retrieveAll();
@@ -0,0 +1,165 @@
+package FCRLM;
+
+import common.ScoreAccumulator;
+import common.TopKSelector;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+
+/**
+ * An expanded query, as a weighted vector of terms, scored term-at-a-time. <p>
+ * The terms are taken from the expansion map of RM3() (EQ1), with their
+ * expansionWeight as the boost, or of RM3_overloaded() (EQ2), with their
+ * p_w_given_R, in the order in which getExpandedQuery() and
+ * getExpandedQuery_Overloaded() add them to the BooleanQuery. search() scores the
+ * postings of one term after the other into a ScoreAccumulator, and selects the top
+ * documents at the end. The term weights are normalized and the coord factor
+ * applied as in the BooleanQuery of the terms, with any similarity; the term scores
+ * of a document are summed in the order of the terms, so the scores are those of
+ * the BooleanQuery up to float rounding, and documents of equal score may be ranked
+ * in another order. The query rewrites to the BooleanQuery, for any other use.
+ * @author dwaipayan
+ */
+
+public class WeightedTermsQuery extends Query {
+
+    private final Term[]    terms;
+    private final float[]   weights;
+
+    /**
+     * Makes the query of the terms of 'expandedQuery' in 'field'; as in getExpandedQuery(),
+     * the keys with a ':' are left out.
+     * @param field The field to search
+     * @param expandedQuery Map of the expansion terms
+     * @param causal true for EQ2, weighted by p_w_given_R as in getExpandedQuery_Overloaded();
+     * false for EQ1, weighted by expansionWeight as in getExpandedQuery()
+     */
+    public WeightedTermsQuery(String field, Map<String, WordProbability> expandedQuery, boolean causal) {
+
+        List<Term> termList = new ArrayList<>(expandedQuery.size());
+        float[] weightList = new float[expandedQuery.size()];
+        for (Map.Entry<String, WordProbability> entrySet : expandedQuery.entrySet()) {
+            String key = entrySet.getKey();
+            if(key.contains(":"))
+                continue;
+            WordProbability wProba = entrySet.getValue();
+            weightList[termList.size()] = causal ? wProba.p_w_given_R : wProba.expansionWeight;
+            termList.add(new Term(field, key));
+        }
+        terms = termList.toArray(new Term[termList.size()]);
+        weights = Arrays.copyOf(weightList, terms.length);
+    }
+
+    /**
+     * Returns the top 'numHits' documents for the query, in non-increasing order of
+     * score, the smaller doc id first among equal scores (as TopScoreDocCollector).
+     * @param searcher The searcher
+     * @param numHits Number of documents to retrieve
+     * @param accumulator Accumulator to use; reset here
+     * @return The top documents; totalHits is the number of matching documents
+     * @throws IOException
+     */
+    public TopDocs search(IndexSearcher searcher, int numHits, ScoreAccumulator accumulator) throws IOException {
+
+        IndexReader reader = searcher.getIndexReader();
+        Similarity similarity = searcher.getSimilarity(true);
+
+        /* normalization of the term weights, as BooleanWeight does */
+        Weight[] termWeights = new Weight[terms.length];
+        float sum = 0.0f;
+        for (int i = 0; i < terms.length; i++) {
+            TermQuery termQuery = new TermQuery(terms[i]);
+            termQuery.setBoost(weights[i]);
+            termWeights[i] = searcher.createWeight(termQuery, true);
+            sum += termWeights[i].getValueForNormalization();
+        }
+        sum *= getBoost() * getBoost();
+        float norm = similarity.queryNorm(sum);
+        if(Float.isInfinite(norm) || Float.isNaN(norm))
+            norm = 1.0f;
+        for (Weight termWeight : termWeights)
+            termWeight.normalize(norm, getBoost());
+
+        float[] coordFactors = new float[terms.length + 1];
+        for (int i = 0; i < coordFactors.length; i++)
+            coordFactors[i] = (terms.length == 1) ? 1f : similarity.coord(i, terms.length);
+
+        accumulator.reset(reader.maxDoc());
+        for (Weight termWeight : termWeights) {
+            for (LeafReaderContext context : reader.leaves()) {
+                Scorer scorer = termWeight.scorer(context);
+                if(null == scorer)
+                    continue;
+                Bits liveDocs = context.reader().getLiveDocs();
+                for (int doc = scorer.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.nextDoc())
+                    if(null == liveDocs || liveDocs.get(doc))
+                        accumulator.add(context.docBase + doc, scorer.score());
+            }
+        }
+
+        TopKSelector selector = new TopKSelector(numHits);
+        accumulator.select(selector, coordFactors);
+        float[] scores = new float[selector.size()];
+        int[] docs = selector.drain(scores);
+        ScoreDoc[] scoreDocs = new ScoreDoc[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            scoreDocs[i] = new ScoreDoc(docs[i], scores[i]);
+        return new TopDocs(accumulator.size(), scoreDocs, (scoreDocs.length > 0) ? scoreDocs[0].score : Float.NaN);
+    }
+
+    /**
+     * Returns the BooleanQuery of the terms, as getExpandedQuery() builds it.
+     * @return The disjunction of the boosted TermQuery clauses
+     */
+    public BooleanQuery toBooleanQuery() {
+
+        BooleanQuery booleanQuery = new BooleanQuery();
+        for (int i = 0; i < terms.length; i++) {
+            TermQuery termQuery = new TermQuery(terms[i]);
+            termQuery.setBoost(weights[i]);
+            booleanQuery.add(termQuery, BooleanClause.Occur.SHOULD);
+        }
+        booleanQuery.setBoost(getBoost());
+        return booleanQuery;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        return toBooleanQuery();
+    }
+
+    @Override
+    public String toString(String field) {
+        return toBooleanQuery().toString(field);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(!super.equals(obj))
+            return false;
+        WeightedTermsQuery other = (WeightedTermsQuery) obj;
+        return Arrays.equals(terms, other.terms) && Arrays.equals(weights, other.weights);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + Arrays.hashCode(terms)) + Arrays.hashCode(weights);
+    }
+}
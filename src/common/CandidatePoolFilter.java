@@ -0,0 +1,142 @@
+package common;
+
+import java.util.Arrays;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Filter that accepts only the documents of a candidate pool, given as a ranked
+ * list of a first-stage retrieval. <p>
+ * The doc ids are kept sorted; the iterator of each segment walks its slice of
+ * them, so that with FilteredQuery.LEAP_FROG_FILTER_FIRST_STRATEGY the postings
+ * of the query are advanced from one candidate to the next, instead of being
+ * traversed in full. The scores of the accepted documents are not changed.
+ * @author dwaipayan
+ */
+
+public class CandidatePoolFilter extends Filter {
+
+    /**
+     * Lucene doc ids of the pool, in increasing order.
+     */
+    private final int[] docIds;
+
+    /**
+     * @param scoreDocs Ranked list of the first-stage retrieval
+     * @param poolSize Number of top documents of the list to be taken in the pool
+     */
+    public CandidatePoolFilter(ScoreDoc[] scoreDocs, int poolSize) {
+
+        int n = Math.min(poolSize, scoreDocs.length);
+        int[] pool = new int[n];
+        for (int i = 0; i < n; i++)
+            pool[i] = scoreDocs[i].doc;
+        Arrays.sort(pool);
+        int unique = 0;
+        for (int i = 0; i < n; i++)
+            if(0 == unique || pool[i] != pool[unique - 1])
+                pool[unique++] = pool[i];
+        docIds = Arrays.copyOf(pool, unique);
+    }
+
+    /**
+     * Returns the number of documents in the pool.
+     * @return Size of the pool
+     */
+    public int size() {return docIds.length;}
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) {
+
+        final int docBase = context.docBase;
+        final int from = lowerBound(docBase);
+        final int to = lowerBound(docBase + context.reader().maxDoc());
+        if(from == to)
+            return null;
+
+        DocIdSet slice = new DocIdSet() {
+            @Override
+            public DocIdSetIterator iterator() {
+                return new SliceIterator(from, to, docBase);
+            }
+
+            @Override
+            public long ramBytesUsed() {
+                return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;     // shares the array of the filter
+            }
+        };
+        return BitsFilteredDocIdSet.wrap(slice, acceptDocs);
+    }
+
+    /**
+     * Returns the position of the first doc id of the pool that is not less than 'docId'.
+     */
+    private int lowerBound(int docId) {
+        int i = Arrays.binarySearch(docIds, docId);
+        return (i >= 0) ? i : -i - 1;
+    }
+
+    /**
+     * Iterates over docIds[from, to), as doc ids of the segment starting at docBase.
+     */
+    private class SliceIterator extends DocIdSetIterator {
+
+        final int   from, to, docBase;
+        int         i;
+        int         doc = -1;
+
+        SliceIterator(int from, int to, int docBase) {
+            this.from = from;
+            this.to = to;
+            this.docBase = docBase;
+            this.i = from - 1;
+        }
+
+        @Override
+        public int docID() {return doc;}
+
+        @Override
+        public int nextDoc() {
+            if(++i >= to)
+                return doc = NO_MORE_DOCS;
+            return doc = docIds[i] - docBase;
+        }
+
+        @Override
+        public int advance(int target) {
+            if(NO_MORE_DOCS == target || i + 1 >= to) {     // (target + docBase would overflow)
+                i = to;
+                return doc = NO_MORE_DOCS;
+            }
+            int j = Arrays.binarySearch(docIds, i + 1, to, target + docBase);
+            i = (j >= 0) ? j : -j - 1;
+            if(i >= to)
+                return doc = NO_MORE_DOCS;
+            return doc = docIds[i] - docBase;
+        }
+
+        @Override
+        public long cost() {return to - from;}
+    }
+
+    @Override
+    public String toString(String field) {
+        return "CandidatePoolFilter(" + docIds.length + " docs)";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return super.equals(obj) && Arrays.equals(docIds, ((CandidatePoolFilter) obj).docIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Arrays.hashCode(docIds);
+    }
+}
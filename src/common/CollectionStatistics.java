@@ -3,11 +3,16 @@ package common;
 import static common.CommonVariables.FIELD_BOW;
 import static common.CommonVariables.FIELD_FULL_BOW;
 import static common.CommonVariables.FIELD_ID;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.lucene.document.Document;
+import java.util.concurrent.ForkJoinPool;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
@@ -16,6 +21,7 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
 /**
@@ -59,6 +65,12 @@ public class CollectionStatistics {
      */
     public HashMap<String, PerTermStat> perTermStat;
 
+    /**
+     * Memory-mapped statistics of all the terms, used instead of perTermStat after
+     * openCollectionStat(); null otherwise.
+     */
+    CollectionStatsSnapshot snapshot;
+
     public long getDocCount() {return docCount;}
     public long getVocSize() {return vocSize;}
     public int getUniqueTermCount() {return uniqTermCount;}
@@ -96,15 +108,8 @@ public class CollectionStatistics {
      */
     public long getVocabularySize(IndexReader indexReader, String field) throws IOException {
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        long vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-
-        return vocSize;
+        // looked up from the per-reader registry, instead of merging the fields on each call
+        return FieldStatistics.get(indexReader, field).getSumTotalTermFreq();
     }
 
     /**
@@ -113,28 +118,30 @@ public class CollectionStatistics {
      * vocSize       - collection-size<p>
      * uniqTermCount - unique terms in collection<p>
      * perTermStat   - cf, df of each terms in the collection <p>
+     * The segments are read in parallel, on as many threads as processors.
      * @throws IOException 
      */
     public void buildCollectionStat() throws IOException {
+        buildCollectionStat(Runtime.getRuntime().availableProcessors());
+    }
 
-        docCount = indexReader.maxDoc();      // total number of documents in the index
+    /**
+     * buildCollectionStat(), with the segments of the index read and merged on a
+     * fork-join pool of 'parallelism' threads.
+     * @param parallelism Number of threads
+     * @throws IOException 
+     */
+    public void buildCollectionStat(int parallelism) throws IOException {
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-        vocSize = getVocabularySize(indexReader, field);
-        TermsEnum iterator = terms.iterator();
-        BytesRef byteRef = null;
+        docCount = indexReader.maxDoc();      // total number of documents in the index
+        vocSize = getVocabularySize(indexReader, field);  // total number of terms in the index in that field
 
-        while((byteRef = iterator.next()) != null) {
+        SegmentStatsBuilder.TermTable table = buildTermTable(parallelism);
+        for (int i = 0; i < table.size(); i++) {
         //* for each word in the collection
-            String t = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            int df = iterator.docFreq();           // df of 't'
-            long cf = iterator.totalTermFreq();    // cf of 't'
+            String t = table.getString(i);
+            int df = table.getDF(i);            // df of 't'
+            long cf = table.getCF(i);           // cf of 't'
             // idf = log(#docCount / (df+1) )
             double idf = Math.log((float)(docCount)/(float)(df+1));
             double norm_cf = (double)cf / (double)vocSize;
@@ -146,28 +153,66 @@ public class CollectionStatistics {
         System.out.println("Unique terms: " + uniqTermCount);
     }
 
-    public void setUniqueTermCount() throws IOException {
-
-        docCount = indexReader.maxDoc();      // total number of documents in the index
+    /**
+     * Returns the table of the terms of the field, built segment by segment on a
+     * fork-join pool of 'parallelism' threads.
+     */
+    private SegmentStatsBuilder.TermTable buildTermTable(int parallelism) throws IOException {
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
+        if(null == MultiFields.getTerms(indexReader, field)) {
             System.err.println("Field: "+field);
             System.err.println("Error buildCollectionStat(): terms Null found");
         }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-        vocSize = getVocabularySize(indexReader, field);
-        TermsEnum iterator = terms.iterator();
-        BytesRef byteRef = null;
-
-        int count = 0;
-        while((byteRef = iterator.next()) != null) {
-        //* for each word in the collection
-            String t = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            count++;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return SegmentStatsBuilder.build(indexReader, field, pool);
         }
-        uniqTermCount = count;
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Initialize collectionStat from the snapshot of the field in 'snapshotDir',
+     * building it if the index commit has none: docCount, vocSize and uniqTermCount
+     * are set as by buildCollectionStat(), and the statistics of the terms are looked
+     * up in the mapped snapshot by getTermStat(), instead of being loaded in perTermStat.
+     * @param snapshotDir Directory to keep the snapshot in
+     * @throws IOException 
+     */
+    public void openCollectionStat(Path snapshotDir) throws IOException {
+
+        snapshot = CollectionStatsSnapshot.getInstance(indexReader, field, snapshotDir);
+        docCount = snapshot.getDocCount();
+        vocSize = snapshot.getVocSize();
+        uniqTermCount = snapshot.getUniqueTermCount();
+
+        System.out.println("Collection statistics opened");
+        System.out.println("Unique terms: " + uniqTermCount);
+    }
+
+    /**
+     * Returns the statistics of 'term', from perTermStat, or from the snapshot if
+     * the statistics were opened with openCollectionStat().
+     * @param term The term
+     * @return PerTermStat with cf, df, idf and norm_cf of the term; null if the term
+     * is not in the collection
+     */
+    public PerTermStat getTermStat(String term) {
+        return (null == snapshot) ? perTermStat.get(term) : snapshot.getTermStat(term);
+    }
+
+    /**
+     * Sets docCount, vocSize and uniqTermCount. The unique terms are counted by
+     * FieldStatistics, streaming the merge of the term dictionaries of the segments
+     * (the size of the dictionary, for a single segment), with no table of the terms.
+     * @throws IOException 
+     */
+    public void setUniqueTermCount() throws IOException {
+
+        docCount = indexReader.maxDoc();      // total number of documents in the index
+        vocSize = getVocabularySize(indexReader, field);  // total number of terms in the index in that field
+        uniqTermCount = (int) FieldStatistics.get(indexReader, field).getUniqueTermCount();
 
         System.out.println("Unique terms: " + uniqTermCount);
     }
@@ -204,14 +249,9 @@ public class CollectionStatistics {
 
     public void getQueryDocumentVector(int luceneDocid, String[] qTerms, float lambda) throws IOException {
 
-        DocumentVector dv = new DocumentVector();
-        if(this == null)
-            System.out.println("CollectionStatistics is null");
-        dv = dv.getDocumentVector(luceneDocid, this);
-
-        // Term vector for this document and field, or null if term vectors were not indexed
-        Terms terms = indexReader.getTermVector(luceneDocid, FIELD_BOW);
-        if(null == terms) {
+        // the vector is decoded from the term vector only if it is not in the shared cache
+        DocumentVector dv = DocumentVectorCache.getInstance(indexReader, FIELD_BOW).getDocumentVector(luceneDocid);
+        if(null == dv) {
             System.err.println("Error: getQueryDocumentVector() Term vectors not indexed: "+luceneDocid);
             System.exit(1);
         }
@@ -274,59 +314,29 @@ public class CollectionStatistics {
     }
 
     /**
-     * Prints all the document ids with 1) full-length and 2) clean-length.
+     * Prints all the document ids with 1) full-length and 2) clean-length. <p>
+     * The lengths are read from the DocLengthStore of each field (built in parallel),
+     * and the ids from the DocIdLookup; the report is written through one buffer.
+     * @param tableDir Directory to keep the tables in, to be reused by the next calls
+     * on the same index commit; null to build them on the heap only
      * @throws IOException 
      */
-    public void allDocLength() throws IOException {
-
-        for (int i=0; i<indexReader.maxDoc(); i++) {
-            Document doc = indexReader.document(i);
-            String docId = doc.get(FIELD_ID);
+    public void allDocLength(Path tableDir) throws IOException {
 
-            System.out.print((i+1) + " " + docId + " ");
+        DocLengthStore fullLengths = DocLengthStore.getInstance(indexReader, FIELD_FULL_BOW, tableDir);
+        DocLengthStore cleanLengths = DocLengthStore.getInstance(indexReader, FIELD_BOW, tableDir);
+        DocIdLookup docIdLookup = DocIdLookup.getInstance(indexReader, FIELD_ID, tableDir);
+        Bits liveDocs = MultiFields.getLiveDocs(indexReader);
 
-            int fullLen, cleanLen;
-            TermsEnum iterator;
-            BytesRef byteRef;
-
-            // Full length calculation
-            // Term vector for this document and field, or null if term vectors were not indexed
-            Terms terms = indexReader.getTermVector(i, FIELD_FULL_BOW);
-            if(null == terms) {
-                fullLen = 0;
-            }
-
-            else {
-                iterator = terms.iterator();
-                byteRef = null;
-
-                fullLen = 0;
-                while((byteRef = iterator.next()) != null) {
-                //* for each word in the document
-                    long termFreq = iterator.totalTermFreq();    // tf of 't'
-                    fullLen += termFreq;
-                }
-            }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (int i=0; i<indexReader.maxDoc(); i++) {
+            // the lookup has no id for a deleted document
+            String docId = (null == liveDocs || liveDocs.get(i)) ? docIdLookup.getDocid(i) : indexReader.document(i).get(FIELD_ID);
 
-            // Clean length calculation
-            // Term vector for this document and field, or null if term vectors were not indexed
-            terms = indexReader.getTermVector(i, FIELD_BOW);
-            if(null == terms) {
-                cleanLen = 0;
-            }
-            else {
-                iterator = terms.iterator();
-                byteRef = null;
-
-                cleanLen = 0;
-                while((byteRef = iterator.next()) != null) {
-                //* for each word in the document
-                    long termFreq = iterator.totalTermFreq();    // tf of 't'
-                    cleanLen += termFreq;
-                }
-            }
-            System.out.println(fullLen + " " + cleanLen);
+            out.print((i+1) + " " + docId + " ");
+            out.println(fullLengths.getLength(i) + " " + cleanLengths.getLength(i));
         }
+        out.flush();
     }
 
     public static void main(String[] args) throws IOException {
@@ -336,7 +346,8 @@ public class CollectionStatistics {
         CollectionStatistics cs;
 
         if (args.length < 2) {
-            System.out.println("Usage: java common.CollectionStatistics <index-path> [-d (to compute all doc.length)] "
+            System.out.println("Usage: java common.CollectionStatistics <index-path> [-d [<table-dir>] (to compute all doc.length, "
+                + "keeping the length and docid tables in table-dir)] "
                 + "[-t <field-name> (to get the unique term count in field-name)]");
             System.exit(0);
         }
@@ -348,7 +359,7 @@ public class CollectionStatistics {
                 case "-d":
                     System.out.println("Computing all the document length");
                     cs = new CollectionStatistics(indexPath);
-                    cs.allDocLength();
+                    cs.allDocLength((i+1 < args.length && !args[i+1].startsWith("-")) ? Paths.get(args[++i]) : null);
                     break;
                 case "-t":
                     field = args[++i];
@@ -0,0 +1,348 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Collection statistics of all the terms of a field, built once per index commit
+ * into a file, and memory-mapped: <pre>
+ *  int magic, int version, byte[16] commit id, int maxDoc, int (unused),
+ *  long sumTotalTermFreq, long numTerms,
+ *  long[numTerms+1] offsets into the terms, long[numTerms] cf, double[numTerms] idf,
+ *  double[numTerms] norm_cf, int[numTerms] df, byte[] terms (UTF-8, in index order)
+ * </pre>
+ * The terms are in the order of the term dictionary (unsigned bytes), so a term is
+ * looked up by a binary search on the mapped file, with no copy of the dictionary
+ * on the heap; opening an existing snapshot only maps it. idf and norm_cf are those
+ * of CollectionStatistics.buildCollectionStat(), and the snapshot is built from the
+ * segments in parallel, by SegmentStatsBuilder. <p>
+ * The file is kept in 'snapshotDir' under a name made from the index path, the field
+ * and the commit id of the reader (see TableFiles), so that it is rebuilt when the
+ * index changes; for an index not on a file system, or with no commit id, it is
+ * built in a temporary file. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. The lookups are thread-safe.
+ * @author dwaipayan
+ */
+
+public class CollectionStatsSnapshot {
+
+    static final private int MAGIC = 0x46435353;    // "FCSS"
+    static final private int VERSION = 2;
+    static final private int HEADER_BYTES = 4 + 4 + StringHelper.ID_LENGTH + 4 + 4 + 8 + 8;
+
+    /**
+     * The file is mapped in chunks of 2^CHUNK_BITS bytes; the columns are 8-byte
+     * aligned, so that no value crosses two chunks.
+     */
+    static final private int CHUNK_BITS = 30;
+    static final private long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /**
+     * All the snapshots of the process.
+     */
+    static final private ReaderRegistry<CollectionStatsSnapshot> snapshots = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+    /**
+     * Total number of documents in the index.
+     */
+    long            docCount;
+    /**
+     * Total number of terms in the field of the index.
+     */
+    long            vocSize;
+
+    private final int               numTerms;
+    private final MappedByteBuffer[] chunks;
+    /* start of each column in the file */
+    private final long      offsetsStart, cfStart, idfStart, normCfStart, dfStart, termsStart;
+
+    public long getDocCount() {return docCount;}
+    public long getVocSize() {return vocSize;}
+    public int getUniqueTermCount() {return numTerms;}
+
+    /**
+     * Returns the snapshot of 'field' in 'indexReader'; it is built (or opened) in
+     * 'snapshotDir' on the first call.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param snapshotDir Directory to keep the snapshot in
+     * @return The shared snapshot for the reader and field
+     * @throws IOException
+     */
+    public static CollectionStatsSnapshot getInstance(IndexReader indexReader, String field, Path snapshotDir) throws IOException {
+        return snapshots.get(indexReader, field, new ReaderRegistry.Factory<CollectionStatsSnapshot>() {
+            @Override
+            public CollectionStatsSnapshot create(IndexReader indexReader, String field) throws IOException {
+                return new CollectionStatsSnapshot(indexReader, field, snapshotDir);
+            }
+        });
+    }
+
+    /**
+     * Returns the snapshot of 'field' in 'indexReader', if one is open.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The snapshot; null if getInstance() was not called for the reader and field
+     */
+    public static CollectionStatsSnapshot get(IndexReader indexReader, String field) {
+        return snapshots.peek(indexReader, field);
+    }
+
+    private CollectionStatsSnapshot(IndexReader indexReader, String field, Path snapshotDir) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+
+        byte[] commitId = TableFiles.getCommitId(indexReader);
+        Path snapshotPath = TableFiles.getTablePath(indexReader, snapshotDir, "stats", field, commitId);
+        MappedByteBuffer[] c = (null == snapshotPath) ? null : openSnapshot(snapshotPath, commitId);
+        if(null == c) {
+            long start = System.currentTimeMillis();
+            boolean temporary = (null == snapshotPath);
+            if(temporary) {
+                Files.createDirectories(snapshotDir);
+                snapshotPath = Files.createTempFile(snapshotDir, "stats-" + field, ".tmp");
+                snapshotPath.toFile().deleteOnExit();
+            }
+            buildSnapshot(snapshotPath, commitId, temporary);
+            c = map(snapshotPath);
+            System.out.println("CollectionStatsSnapshot (" + field + "): " + c[0].getLong(40) + " terms in "
+                + (System.currentTimeMillis() - start) + " ms: " + snapshotPath);
+        }
+        chunks = c;
+
+        docCount = chunks[0].getInt(24);
+        vocSize = chunks[0].getLong(32);
+        numTerms = (int) chunks[0].getLong(40);
+        offsetsStart = HEADER_BYTES;
+        cfStart = offsetsStart + 8L * (numTerms + 1);
+        idfStart = cfStart + 8L * numTerms;
+        normCfStart = idfStart + 8L * numTerms;
+        dfStart = normCfStart + 8L * numTerms;
+        termsStart = dfStart + 4L * numTerms;
+    }
+
+    /**
+     * Returns the ordinal of the term, in the order of the term dictionary.
+     * @param term The term, as UTF-8 bytes
+     * @return The ordinal; -1 if the term is not in the field
+     */
+    public int getOrd(BytesRef term) {
+
+        int low = 0, high = numTerms - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, term);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    public long getCF(int ord) {return getLong(cfStart + 8L * ord);}
+    public int getDF(int ord) {return getInt(dfStart + 4L * ord);}
+    public double getIDF(int ord) {return Double.longBitsToDouble(getLong(idfStart + 8L * ord));}
+    public double getNormalizedCF(int ord) {return Double.longBitsToDouble(getLong(normCfStart + 8L * ord));}
+
+    /**
+     * Returns the term with the ordinal.
+     * @param ord The ordinal of the term
+     * @return The UTF-8 bytes of the term
+     */
+    public BytesRef getTerm(int ord) {
+
+        long start = getLong(offsetsStart + 8L * ord);
+        int length = (int) (getLong(offsetsStart + 8L * (ord + 1)) - start);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = getByte(termsStart + start + i);
+        return new BytesRef(bytes);
+    }
+
+    /**
+     * Returns the collection statistics of 'term', as buildCollectionStat() makes them.
+     * @param term The term
+     * @return A new PerTermStat with cf, df, idf and norm_cf of the term; null if the
+     * term is not in the field
+     */
+    public PerTermStat getTermStat(String term) {
+
+        int ord = getOrd(new BytesRef(term));
+        if(ord < 0)
+            return null;
+        return new PerTermStat(term, getCF(ord), getDF(ord), getIDF(ord), getNormalizedCF(ord));
+    }
+
+    /**
+     * Compares the term with the ordinal to 'term', as BytesRef.compareTo().
+     */
+    private int compare(int ord, BytesRef term) {
+
+        long start = termsStart + getLong(offsetsStart + 8L * ord);
+        int length = (int) (termsStart + getLong(offsetsStart + 8L * (ord + 1)) - start);
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (getByte(start + i) & 0xff) - (term.bytes[term.offset + i] & 0xff);
+            if(diff != 0)
+                return diff;
+        }
+        return length - term.length;
+    }
+
+    private long getLong(long pos) {return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));}
+    private int getInt(long pos) {return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));}
+    private byte getByte(long pos) {return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));}
+
+    /**
+     * Buffered writer of one column of the snapshot, at its position in the file.
+     */
+    private static class ColumnWriter {
+
+        final FileChannel   channel;
+        final ByteBuffer    buff = ByteBuffer.allocate(1 << 16);
+        long                position;
+
+        ColumnWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        ColumnWriter putLong(long v) throws IOException {
+            if(buff.remaining() < 8) flush();
+            buff.putLong(v);
+            return this;
+        }
+
+        ColumnWriter putInt(int v) throws IOException {
+            if(buff.remaining() < 4) flush();
+            buff.putInt(v);
+            return this;
+        }
+
+        ColumnWriter put(BytesRef bytes) throws IOException {
+            for (int i = 0; i < bytes.length; i++) {
+                if(!buff.hasRemaining()) flush();
+                buff.put(bytes.bytes[bytes.offset + i]);
+            }
+            return this;
+        }
+
+        void flush() throws IOException {
+            buff.flip();
+            while(buff.hasRemaining())
+                position += channel.write(buff, position);
+            buff.clear();
+        }
+    }
+
+    /**
+     * Writes the snapshot, from the table of the terms built segment by segment on
+     * a fork-join pool. Unless 'inPlace', it is written to a temporary file that is
+     * then moved to 'snapshotPath'.
+     */
+    private void buildSnapshot(Path snapshotPath, byte[] commitId, boolean inPlace) throws IOException {
+
+        int maxDoc = indexReader.maxDoc();
+        long sumTotalTermFreq = FieldStatistics.get(indexReader, field).getSumTotalTermFreq();
+        if(null == MultiFields.getTerms(indexReader, field)) {
+            System.err.println("Field: "+field);
+            System.err.println("Error CollectionStatsSnapshot: terms Null found");
+        }
+        SegmentStatsBuilder.TermTable table;
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            table = SegmentStatsBuilder.build(indexReader, field, pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+        long n = table.size();
+
+        Path writePath = inPlace ? snapshotPath
+            : Files.createTempFile(Files.createDirectories(snapshotPath.getParent()), snapshotPath.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(writePath, StandardOpenOption.WRITE)) {
+            ColumnWriter header = new ColumnWriter(channel, 0);
+            header.putInt(MAGIC).putInt(VERSION)
+                .put(new BytesRef((null == commitId) ? new byte[StringHelper.ID_LENGTH] : commitId)).putInt(maxDoc).putInt(0)
+                .putLong(sumTotalTermFreq).putLong(n);
+            header.flush();
+
+            ColumnWriter offsets = new ColumnWriter(channel, HEADER_BYTES);
+            ColumnWriter cfs = new ColumnWriter(channel, HEADER_BYTES + 8 * (n + 1));
+            ColumnWriter idfs = new ColumnWriter(channel, cfs.position + 8 * n);
+            ColumnWriter normCfs = new ColumnWriter(channel, idfs.position + 8 * n);
+            ColumnWriter dfs = new ColumnWriter(channel, normCfs.position + 8 * n);
+            ColumnWriter bytes = new ColumnWriter(channel, dfs.position + 4 * n);
+
+            long offset = 0;
+            offsets.putLong(offset);
+            BytesRef byteRef = new BytesRef();
+            for (int i = 0; i < n; i++) {
+                int df = table.getDF(i);            // df of 't'
+                long cf = table.getCF(i);           // cf of 't'
+                // idf = log(#docCount / (df+1) )
+                double idf = Math.log((float)(maxDoc)/(float)(df+1));
+                double norm_cf = (double)cf / (double)sumTotalTermFreq;
+                bytes.put(table.getTerm(i, byteRef));
+                offset += byteRef.length;
+                offsets.putLong(offset);
+                cfs.putLong(cf);
+                idfs.putLong(Double.doubleToRawLongBits(idf));
+                normCfs.putLong(Double.doubleToRawLongBits(norm_cf));
+                dfs.putInt(df);
+            }
+            for (ColumnWriter column : new ColumnWriter[] {offsets, cfs, idfs, normCfs, dfs, bytes})
+                column.flush();
+        }
+        if(!inPlace)
+            Files.move(writePath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the snapshot at 'snapshotPath', if it exists and is of the reader.
+     * @return The mapped chunks; null if there is none to use
+     */
+    private MappedByteBuffer[] openSnapshot(Path snapshotPath, byte[] commitId) throws IOException {
+
+        if(!Files.exists(snapshotPath))
+            return null;
+        MappedByteBuffer[] c = map(snapshotPath);
+        ByteBuffer h = c[0];
+        if(h.limit() < HEADER_BYTES || h.getInt(0) != MAGIC || h.getInt(4) != VERSION
+            || !TableFiles.isOfCommit(h, 8, commitId) || h.getInt(24) != indexReader.maxDoc()) {
+            System.err.println("CollectionStatsSnapshot: stale snapshot, rebuilding: " + snapshotPath);
+            return null;
+        }
+        return c;
+    }
+
+    private static MappedByteBuffer[] map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] c = new MappedByteBuffer[(int) (Math.max(size - 1, 0) >>> CHUNK_BITS) + 1];
+            for (int i = 0; i < c.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                c[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << CHUNK_BITS));
+            }
+            return c;
+        }
+    }
+}
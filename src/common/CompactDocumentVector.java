@@ -0,0 +1,118 @@
+package common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Vector of a document in terms of the ids of a TermVocabulary: the ids of the
+ * terms of the document in increasing order, with their frequencies in the
+ * document at the same positions. <p>
+ * Compared to DocumentVector, it needs no String, PerTermStat or hash entry for
+ * a term; a lookup is a binary search over the ids.
+ * @author dwaipayan
+ */
+
+public class CompactDocumentVector {
+
+    /**
+     * Field for which, the vector is made.
+     */
+    public final String field;
+    /**
+     * Lucene doc id of the document.
+     */
+    public final int    luceneDocId;
+    /**
+     * Vocabulary ids of the terms of the document, in increasing order.
+     */
+    final int[]         termIds;
+    /**
+     * Frequency of termIds[i] in the document.
+     */
+    final int[]         freqs;
+    /**
+     * Size of the document.
+     */
+    private final int   size;
+
+    private CompactDocumentVector(String field, int luceneDocId, int[] termIds, int[] freqs, int size) {
+        this.field = field;
+        this.luceneDocId = luceneDocId;
+        this.termIds = termIds;
+        this.freqs = freqs;
+        this.size = size;
+    }
+
+    public int getDocSize() {return size;}
+    /**
+     * Returns the number of unique terms in the document.
+     * @return Number of unique terms
+     */
+    public int getNumTerms() {return termIds.length;}
+    public int getTermId(int i) {return termIds[i];}
+    public int getFreq(int i) {return freqs[i];}
+
+    /**
+     * Returns the frequency of the term with the id in the document.
+     * @param termId Vocabulary id of the term
+     * @return tf of the term; 0 if the term is not in the document
+     */
+    public int getTf(int termId) {
+
+        int i = Arrays.binarySearch(termIds, termId);
+        return (i >= 0) ? freqs[i] : 0;
+    }
+
+    /**
+     * Returns the compact vector for the document with lucene-docid=luceneDocId,
+     * made from the term vector of 'field'.
+     * @param luceneDocId The lucene doc id of the document
+     * @param indexReader The index reader
+     * @param field The field
+     * @param vocabulary Vocabulary of the field, to map the terms to ids
+     * @return The compact document vector; null if term vectors were not indexed
+     * @throws IOException
+     */
+    public static CompactDocumentVector getDocumentVector(int luceneDocId, IndexReader indexReader,
+        String field, TermVocabulary vocabulary) throws IOException {
+
+        // term vector for this document and field, or null if term vectors were not indexed
+        Terms terms = indexReader.getTermVector(luceneDocId, field);
+        if(null == terms) {
+            System.err.println("Error getDocumentVector(): Term vectors not indexed: "+luceneDocId);
+            return null;
+        }
+
+        int numTerms = (int) terms.size();
+        // (id << 32 | tf) packed, so that a single sort orders the ids along with their tf
+        long[] packed = new long[numTerms > 0 ? numTerms : 16];
+        int n = 0;
+        int docSize = 0;
+
+        TermsEnum iterator = terms.iterator();
+        BytesRef byteRef;
+
+        //* for each word in the document
+        while((byteRef = iterator.next()) != null) {
+            int termFreq = (int) iterator.totalTermFreq();    // tf of 't'
+            docSize += termFreq;
+            if(n == packed.length)
+                packed = Arrays.copyOf(packed, n * 2);
+            packed[n++] = ((long) vocabulary.getOrAddId(byteRef) << 32) | termFreq;
+        }
+        Arrays.sort(packed, 0, n);
+
+        int[] termIds = new int[n];
+        int[] freqs = new int[n];
+        for (int i = 0; i < n; i++) {
+            termIds[i] = (int) (packed[i] >>> 32);
+            freqs[i] = (int) packed[i];
+        }
+
+        return new CompactDocumentVector(field, luceneDocId, termIds, freqs, docSize);
+    }
+}
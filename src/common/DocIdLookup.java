@@ -0,0 +1,331 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Maps lucene doc ids to the values of a single-valued id field (FIELD_ID), for
+ * writing the results, with no stored-field access per document. <p>
+ * If the field has SORTED or BINARY doc values, they are read (these are assumed
+ * to hold the same value as the stored field). Otherwise a table of the stored
+ * values is built once, by a pass over the stored fields that decodes only the id
+ * field, and is memory-mapped: <pre>
+ *  int magic, int version, byte[16] commit id, int maxDoc,
+ *  int[maxDoc+1] offsets into the data, byte[] data (UTF-8 values)
+ * </pre>
+ * The table is kept in 'tableDir' under a name made from the index path, the field
+ * and the commit id of the reader (see TableFiles), and is used only for that commit,
+ * so that it is rebuilt when the index changes, or is rebuilt at the same path; for
+ * an index not on a file system, or with no commit id (older than Lucene 5.0), the
+ * table is kept on the heap. The
+ * end offset of a document without the field is stored as ~offset, and its value
+ * is null, as Document.get() would return. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. The lookups are thread-safe. <p>
+ * The reverse lookup, from an id to the lucene doc id, seeks the id in the postings
+ * of the field if it is indexed; otherwise, a map of the ids of the live documents
+ * is built on its first call.
+ * @author dwaipayan
+ */
+
+public class DocIdLookup {
+
+    static final private int MAGIC = 0x46434449;    // "FCDI"
+    static final private int VERSION = 2;
+    static final private int HEADER_BYTES = 4 + 4 + 16 + 4;
+
+    /**
+     * All the lookups of the process.
+     */
+    static final private ReaderRegistry<DocIdLookup> lookups = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+    /**
+     * Doc values type of the field; null if the table is used.
+     */
+    private final DocValuesType docValuesType;
+    private final ByteBuffer    table;
+    private final int           dataStart;      // position of the data in the table
+    private final boolean       indexed;        // the ids are in the postings of the field
+    /**
+     * Lucene doc id of each id, for the reverse lookup of a field that is not indexed;
+     * built on the first lookup.
+     */
+    private HashMap<String, Integer>    luceneDocIds;
+
+    /**
+     * Returns the lookup of 'field' in 'indexReader'; the table is built (or opened)
+     * in 'tableDir' on the first call, if the field has no doc values.
+     * @param indexReader The index reader
+     * @param field The id field
+     * @param tableDir Directory to keep the table in; null to keep it on the heap
+     * @return The shared lookup for the reader and field
+     * @throws IOException
+     */
+    public static DocIdLookup getInstance(IndexReader indexReader, String field, Path tableDir) throws IOException {
+        return lookups.get(indexReader, field, new ReaderRegistry.Factory<DocIdLookup>() {
+            @Override
+            public DocIdLookup create(IndexReader indexReader, String field) throws IOException {
+                return new DocIdLookup(indexReader, field, tableDir);
+            }
+        });
+    }
+
+    /**
+     * Returns true if 'field' has SORTED or BINARY doc values in 'indexReader': the
+     * lookup then reads the docids from them, and builds no table.
+     * @param indexReader The index reader
+     * @param field The id field
+     * @return true if the lookup of the field needs no table
+     */
+    public static boolean hasDocValues(IndexReader indexReader, String field) {
+
+        FieldInfo fieldInfo = MultiFields.getMergedFieldInfos(indexReader).fieldInfo(field);
+        DocValuesType type = (null == fieldInfo) ? DocValuesType.NONE : fieldInfo.getDocValuesType();
+        return DocValuesType.SORTED == type || DocValuesType.BINARY == type;
+    }
+
+    private DocIdLookup(IndexReader indexReader, String field, Path tableDir) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+
+        FieldInfo fieldInfo = MultiFields.getMergedFieldInfos(indexReader).fieldInfo(field);
+        indexed = null != fieldInfo && IndexOptions.NONE != fieldInfo.getIndexOptions();
+        DocValuesType type = (null == fieldInfo) ? DocValuesType.NONE : fieldInfo.getDocValuesType();
+        if(hasDocValues(indexReader, field)) {
+            docValuesType = type;
+            table = null;
+            dataStart = 0;
+            System.out.println("DocIdLookup (" + field + "): from " + type + " doc values");
+            return;
+        }
+        docValuesType = null;
+
+        byte[] commitId = TableFiles.getCommitId(indexReader);
+        Path tablePath = TableFiles.getTablePath(indexReader, tableDir, "docids", field, commitId);
+        ByteBuffer t = (null == tablePath) ? null : openTable(tablePath, commitId);
+        if(null == t) {
+            long start = System.currentTimeMillis();
+            t = buildTable(commitId);
+            if(null != tablePath)
+                t = writeTable(t, tablePath);
+            System.out.println("DocIdLookup (" + field + "): table of " + indexReader.maxDoc() + " docs built in "
+                + (System.currentTimeMillis() - start) + " ms" + ((null == tablePath) ? "" : ": " + tablePath));
+        }
+        table = t;
+        dataStart = HEADER_BYTES + 4 * (indexReader.maxDoc() + 1);
+    }
+
+    /**
+     * Returns the value of the id field of the document.
+     * @param luceneDocId The lucene doc id of the document
+     * @return The id of the document; null if it has none
+     * @throws IOException
+     */
+    public String getDocid(int luceneDocId) throws IOException {
+
+        if(null != docValuesType)
+            return getDocidFromDocValues(luceneDocId);
+
+        int start = table.getInt(HEADER_BYTES + 4 * luceneDocId);
+        int end = table.getInt(HEADER_BYTES + 4 * (luceneDocId + 1));
+        if(start < 0)
+            start = ~start;
+        if(end < 0)             // the document has no id
+            return null;
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = table.get(dataStart + start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the lucene doc id of the live document with the id.
+     * @param docid The id of the document
+     * @return The lucene doc id; -1 if no live document has the id
+     * @throws IOException
+     */
+    public int getLuceneDocId(String docid) throws IOException {
+
+        if(!indexed) {
+            Integer luceneDocId = getLuceneDocIds().get(docid);
+            return (null == luceneDocId) ? -1 : luceneDocId;
+        }
+
+        BytesRef term = new BytesRef(docid);
+        for (LeafReaderContext leaf : indexReader.leaves()) {
+            Terms terms = leaf.reader().terms(field);
+            if(null == terms)
+                continue;
+            TermsEnum termsEnum = terms.iterator();
+            if(!termsEnum.seekExact(term))
+                continue;
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc())
+                if(null == liveDocs || liveDocs.get(doc))
+                    return leaf.docBase + doc;
+        }
+        return -1;
+    }
+
+    private synchronized HashMap<String, Integer> getLuceneDocIds() throws IOException {
+
+        if(null == luceneDocIds) {
+            long start = System.currentTimeMillis();
+            Bits liveDocs = MultiFields.getLiveDocs(indexReader);
+            HashMap<String, Integer> map = new HashMap<>(2 * indexReader.numDocs());
+            for (int docId = 0; docId < indexReader.maxDoc(); docId++) {
+                if(null != liveDocs && !liveDocs.get(docId))
+                    continue;
+                String docid = getDocid(docId);
+                if(null != docid)
+                    map.put(docid, docId);
+            }
+            luceneDocIds = map;
+            System.out.println("DocIdLookup (" + field + "): map of " + map.size() + " docids built in "
+                + (System.currentTimeMillis() - start) + " ms");
+        }
+        return luceneDocIds;
+    }
+
+    private String getDocidFromDocValues(int luceneDocId) throws IOException {
+
+        List<LeafReaderContext> leaves = indexReader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(luceneDocId, leaves));
+        LeafReader leafReader = leaf.reader();
+        int doc = luceneDocId - leaf.docBase;
+        // the doc values instances of a segment reader are per thread
+        if(DocValuesType.SORTED == docValuesType) {
+            SortedDocValues values = leafReader.getSortedDocValues(field);
+            if(null == values || values.getOrd(doc) < 0)
+                return null;
+            return values.get(doc).utf8ToString();
+        }
+        BinaryDocValues values = leafReader.getBinaryDocValues(field);
+        Bits docsWithField = leafReader.getDocsWithField(field);
+        if(null == values || null == docsWithField || !docsWithField.get(doc))
+            return null;
+        return values.get(doc).utf8ToString();
+    }
+
+    /**
+     * Reads the first stored value of one field of a document, and stops.
+     */
+    private static class IdFieldVisitor extends StoredFieldVisitor {
+
+        final String    field;
+        byte[]          value;
+
+        IdFieldVisitor(String field) {this.field = field;}
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if(null != value)
+                return Status.STOP;
+            return field.equals(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, byte[] value) {
+            this.value = value;
+        }
+    }
+
+    private ByteBuffer buildTable(byte[] commitId) throws IOException {
+
+        int maxDoc = indexReader.maxDoc();
+        int[] offsets = new int[maxDoc + 1];
+        byte[] data = new byte[16 * Math.max(1, Math.min(maxDoc, 1 << 20))];
+        int length = 0;
+        Bits liveDocs = MultiFields.getLiveDocs(indexReader);
+        IdFieldVisitor visitor = new IdFieldVisitor(field);
+
+        offsets[0] = 0;
+        for (int docId = 0; docId < maxDoc; docId++) {
+            visitor.value = null;
+            if(null == liveDocs || liveDocs.get(docId))
+                indexReader.document(docId, visitor);
+            if(null != visitor.value) {
+                if(length + visitor.value.length > data.length)
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, length + visitor.value.length));
+                System.arraycopy(visitor.value, 0, data, length, visitor.value.length);
+                length += visitor.value.length;
+                offsets[docId + 1] = length;
+            }
+            else
+                offsets[docId + 1] = ~length;
+        }
+
+        ByteBuffer t = ByteBuffer.allocate(HEADER_BYTES + 4 * (maxDoc + 1) + length);
+        t.putInt(MAGIC).putInt(VERSION);
+        TableFiles.putCommitId(t, 8, commitId);
+        t.position(24);
+        t.putInt(maxDoc);
+        for (int offset : offsets)
+            t.putInt(offset);
+        t.put(data, 0, length);
+        t.flip();
+        return t;
+    }
+
+    /**
+     * Writes the table to a temporary file, moves it in place, and maps it.
+     */
+    private ByteBuffer writeTable(ByteBuffer t, Path tablePath) throws IOException {
+
+        Files.createDirectories(tablePath.getParent());
+        Path tmpPath = Files.createTempFile(tablePath.getParent(), tablePath.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+            while(t.hasRemaining())
+                channel.write(t);
+        }
+        Files.move(tmpPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return TableFiles.map(tablePath);
+    }
+
+    /**
+     * Maps the table at 'tablePath', if it exists and is of the reader.
+     * @return The mapped table; null if there is none to use
+     */
+    private ByteBuffer openTable(Path tablePath, byte[] commitId) throws IOException {
+
+        if(!Files.exists(tablePath))
+            return null;
+        ByteBuffer t = TableFiles.map(tablePath);
+        if(t.limit() < HEADER_BYTES || t.getInt(0) != MAGIC || t.getInt(4) != VERSION
+            || !TableFiles.isOfCommit(t, 8, commitId) || t.getInt(24) != indexReader.maxDoc()) {
+            System.err.println("DocIdLookup: stale table, rebuilding: " + tablePath);
+            return null;
+        }
+        return t;
+    }
+}
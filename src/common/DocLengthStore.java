@@ -0,0 +1,211 @@
+package common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Lengths of the documents in a field, built once per index commit into a
+ * memory-mapped table: <pre>
+ *  int magic, int version, byte[16] commit id, int maxDoc, int[maxDoc] lengths
+ * </pre>
+ * The length of a document is the sum of the frequencies of its terms, as the size
+ * of its DocumentVector: it is 0 for a document of a segment with no term vectors
+ * in the field. The table is built from the postings of the segments, in parallel
+ * on a fork-join pool, instead of the term vector of each document; the postings of
+ * deleted documents are counted, as their term vectors would be. <p>
+ * The table is kept in 'tableDir' under a name made from the index path, the field
+ * and the commit id of the reader (see TableFiles), so that it is rebuilt when the
+ * index changes; for an index not on a file system, or with no commit id, the table
+ * is kept on the heap. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. The lookups are thread-safe.
+ * @author dwaipayan
+ */
+
+public class DocLengthStore {
+
+    static final private int MAGIC = 0x4643444C;    // "FCDL"
+    static final private int VERSION = 2;
+    static final private int HEADER_BYTES = 4 + 4 + StringHelper.ID_LENGTH + 4;
+
+    /**
+     * All the stores of the process.
+     */
+    static final private ReaderRegistry<DocLengthStore> stores = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+    private final ByteBuffer    table;
+
+    /**
+     * Returns the store of the lengths of the documents in 'field' of 'indexReader';
+     * the table is built (or opened) in 'tableDir' on the first call.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param tableDir Directory to keep the table in; null to keep it on the heap
+     * @return The shared store for the reader and field
+     * @throws IOException
+     */
+    public static DocLengthStore getInstance(IndexReader indexReader, String field, Path tableDir) throws IOException {
+        return stores.get(indexReader, field, new ReaderRegistry.Factory<DocLengthStore>() {
+            @Override
+            public DocLengthStore create(IndexReader indexReader, String field) throws IOException {
+                return new DocLengthStore(indexReader, field, tableDir);
+            }
+        });
+    }
+
+    private DocLengthStore(IndexReader indexReader, String field, Path tableDir) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+        if((long) HEADER_BYTES + 4L * indexReader.maxDoc() > Integer.MAX_VALUE)
+            throw new IOException("DocLengthStore: too many documents for the table: " + indexReader.maxDoc());
+
+        byte[] commitId = TableFiles.getCommitId(indexReader);
+        Path tablePath = TableFiles.getTablePath(indexReader, tableDir, "doclen", field, commitId);
+        ByteBuffer t = (null == tablePath) ? null : openTable(tablePath, commitId);
+        if(null == t) {
+            long start = System.currentTimeMillis();
+            t = (null == tablePath) ? buildTable(ByteBuffer.allocate(HEADER_BYTES + 4 * indexReader.maxDoc()), commitId)
+                : writeTable(tablePath, commitId);
+            System.out.println("DocLengthStore (" + field + "): lengths of " + indexReader.maxDoc() + " docs built in "
+                + (System.currentTimeMillis() - start) + " ms" + ((null == tablePath) ? "" : ": " + tablePath));
+        }
+        table = t;
+    }
+
+    /**
+     * Returns the length of the document in the field.
+     * @param luceneDocId The lucene doc id of the document
+     * @return Sum of the frequencies of the terms of the document
+     */
+    public int getLength(int luceneDocId) {
+        return table.getInt(HEADER_BYTES + 4 * luceneDocId);
+    }
+
+    /**
+     * Adds up the frequencies of the postings of one segment into its range of the table.
+     */
+    private static class SegmentLengths extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final LeafReaderContext leaf;
+        final String            field;
+        final ByteBuffer        target;
+
+        SegmentLengths(LeafReaderContext leaf, String field, ByteBuffer target) {
+            this.leaf = leaf;
+            this.field = field;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+
+            int[] lengths = new int[leaf.reader().maxDoc()];
+            try {
+                FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(field);
+                Terms terms = leaf.reader().terms(field);
+                // without term vectors, the document vectors are empty
+                if(null != fieldInfo && fieldInfo.hasVectors() && null != terms) {
+                    TermsEnum iterator = terms.iterator();
+                    PostingsEnum postings = null;
+                    while(iterator.next() != null) {
+                        postings = iterator.postings(postings, PostingsEnum.FREQS);
+                        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc())
+                            lengths[doc] += postings.freq();
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            int position = HEADER_BYTES + 4 * leaf.docBase;
+            for (int length : lengths) {
+                target.putInt(position, length);
+                position += 4;
+            }
+        }
+    }
+
+    /**
+     * Fills 't' (of HEADER_BYTES + 4*maxDoc bytes) with the table, reading the
+     * segments in parallel.
+     */
+    private ByteBuffer buildTable(ByteBuffer t, byte[] commitId) throws IOException {
+
+        t.putInt(0, MAGIC).putInt(4, VERSION);
+        TableFiles.putCommitId(t, 8, commitId);
+        t.putInt(24, indexReader.maxDoc());
+        List<SegmentLengths> tasks = new ArrayList<>();
+        for (LeafReaderContext leaf : indexReader.leaves())
+            tasks.add(new SegmentLengths(leaf, field, t));
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return t;
+    }
+
+    /**
+     * Builds the table in a mapped temporary file, moves it in place, and maps it.
+     */
+    private ByteBuffer writeTable(Path tablePath, byte[] commitId) throws IOException {
+
+        Files.createDirectories(tablePath.getParent());
+        Path tmpPath = Files.createTempFile(tablePath.getParent(), tablePath.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer t = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 4L * indexReader.maxDoc());
+            buildTable(t, commitId);
+            t.force();
+        }
+        Files.move(tmpPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return TableFiles.map(tablePath);
+    }
+
+    /**
+     * Maps the table at 'tablePath', if it exists and is of the reader.
+     * @return The mapped table; null if there is none to use
+     */
+    private ByteBuffer openTable(Path tablePath, byte[] commitId) throws IOException {
+
+        if(!Files.exists(tablePath))
+            return null;
+        ByteBuffer t = TableFiles.map(tablePath);
+        if(t.limit() != HEADER_BYTES + 4 * indexReader.maxDoc() || t.getInt(0) != MAGIC || t.getInt(4) != VERSION
+            || !TableFiles.isOfCommit(t, 8, commitId) || t.getInt(24) != indexReader.maxDoc()) {
+            System.err.println("DocLengthStore: stale table, rebuilding: " + tablePath);
+            return null;
+        }
+        return t;
+    }
+}
@@ -4,9 +4,7 @@ import static common.CommonVariables.FIELD_BOW;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -23,6 +21,10 @@ public class DocumentVector {
      * Field for which, the statistics will be made.
      */
     public String field;
+    /**
+     * Lucene doc id of the document; -1 if the vector was not read from the index.
+     */
+    public int luceneDocId = -1;
     /**
      * PerTermStat of the Document.
      */
@@ -101,9 +103,10 @@ public class DocumentVector {
 
             //* termFreq = cf, in a document; df = 1, in a document
             //dv.docPerTermStat.put(t, new PerTermStat(t, termFreq, 1));
-            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, cs.perTermStat.get(term).getIDF(), (double)termFreq/(double)cs.getVocSize()));
+            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, cs.getTermStat(term).getIDF(), (double)termFreq/(double)cs.getVocSize()));
         }
         dv.size = docSize;
+        dv.luceneDocId = luceneDocId;
         //System.out.println("DocSize: "+docSize);
 
         return dv;
@@ -127,6 +130,9 @@ public class DocumentVector {
             return null;
         }
 
+        // collection statistics of the terms are shared across documents and queries
+        TermStatsCache termStatsCache = TermStatsCache.getInstance(indexReader, fieldName);
+
         //iterator to seek or step through terms to obtain frequency information
         TermsEnum iterator = terms.iterator();
         //Unless otherwise noted, Lucene uses this class to represent terms that are encoded as UTF8 bytes in the index.
@@ -142,9 +148,11 @@ public class DocumentVector {
 
             //* termFreq = cf, in a document; df = 1, in a document
             //dv.docPerTermStat.put(t, new PerTermStat(t, termFreq, 1));
-            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, getIdf(term, indexReader, fieldName), getCollectionProbability(term, indexReader, fieldName)));
+            PerTermStat colPTS = termStatsCache.getTermStat(term);
+            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, colPTS.getIDF(), colPTS.getNormalizedCF()));
         }
         dv.size = docSize;
+        dv.luceneDocId = luceneDocId;
         //System.out.println("DocSize: "+docSize);
 
         return dv;
@@ -162,15 +170,8 @@ public class DocumentVector {
     }
 
     public long getVocabularySize(IndexReader indexReader, String field) throws IOException {
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        long vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-
-        return vocSize;
+        // looked up from the per-reader registry, instead of merging the fields on each call
+        return FieldStatistics.get(indexReader, field).getSumTotalTermFreq();
     }
 
 
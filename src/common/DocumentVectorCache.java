@@ -0,0 +1,222 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Process-wide, thread-safe LRU cache of the DocumentVectors (and of the
+ * CompactDocumentVectors) of a field of an index, keyed by luceneDocId. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. The cache is bounded by the estimated heap size of the vectors;
+ * each of the segments evicts its least recently used vectors once it exceeds its
+ * share of the budget. The two kinds of vectors are kept apart, each with the
+ * full budget. <p>
+ * The cached vectors are shared, and must not be modified.
+ * @author dwaipayan
+ */
+
+public class DocumentVectorCache {
+
+    /**
+     * Default memory budget of the cached vectors per (reader, field), in bytes.
+     */
+    static final public long DEFAULT_MAX_BYTES = 256L << 20;
+
+    static final private int NUM_SEGMENTS = 16;
+
+    /**
+     * Approximate heap cost of one term of a DocumentVector, excluding the
+     * characters of the term: hash-map entry, String and PerTermStat.
+     */
+    static final private int BYTES_PER_TERM = 128;
+
+    static volatile private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * All the caches of the process.
+     */
+    static final private ReaderRegistry<DocumentVectorCache> caches = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+
+    private final VectorSegment[]   segments;
+    private final CompactSegment[]  compactSegments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * Number of term vectors read by each thread; counted on the misses only.
+     */
+    private final ThreadLocal<long[]> threadReads = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {return new long[1];}
+    };
+
+    public long getHitCount() {return hits.sum();}
+    public long getMissCount() {return misses.sum();}
+    public long getEvictionCount() {return evictions.sum();}
+    /**
+     * Returns the number of term vectors read from the index by the calling thread,
+     * through this cache; the difference of two calls gives the reads in between.
+     * @return Term vectors read by the thread
+     */
+    public long getThreadReadCount() {return threadReads.get()[0];}
+
+    /**
+     * One LRU map of the cache, with the estimated size of its vectors.
+     */
+    private static class Segment<V> {
+        final LinkedHashMap<Integer, V> map = new LinkedHashMap<>(16, 0.75f, true);
+        final HashMap<Integer, Long> bytes = new HashMap<>();
+        long totalBytes;
+    }
+
+    private static class VectorSegment extends Segment<DocumentVector> {}
+    private static class CompactSegment extends Segment<CompactDocumentVector> {}
+
+    /**
+     * Sets the memory budget (in bytes) of the cached vectors per (reader, field).
+     * Affects the caches created after the call.
+     * @param bytes Memory budget in bytes
+     */
+    public static synchronized void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+
+    /**
+     * Returns the cache of the document vectors of 'field' in 'indexReader'.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The shared cache for the reader and field
+     */
+    public static DocumentVectorCache getInstance(IndexReader indexReader, String field) throws IOException {
+        return caches.get(indexReader, field, new ReaderRegistry.Factory<DocumentVectorCache>() {
+            @Override
+            public DocumentVectorCache create(IndexReader indexReader, String field) throws IOException {
+                return new DocumentVectorCache(indexReader, field);
+            }
+        });
+    }
+
+    private DocumentVectorCache(IndexReader indexReader, String field) {
+
+        this.indexReader = indexReader;
+        this.field = field;
+        segments = new VectorSegment[NUM_SEGMENTS];
+        compactSegments = new CompactSegment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new VectorSegment();
+            compactSegments[i] = new CompactSegment();
+        }
+    }
+
+    /**
+     * Returns the vector of the document with lucene-docid=luceneDocId; the term
+     * vector is read from the index only if the document vector is not cached.
+     * @param luceneDocId The lucene doc id of the document
+     * @return The document vector; null if term vectors were not indexed
+     * @throws IOException
+     */
+    public DocumentVector getDocumentVector(int luceneDocId) throws IOException {
+
+        Segment<DocumentVector> segment = segments[luceneDocId % NUM_SEGMENTS];
+        DocumentVector dv = lookup(segment, luceneDocId);
+        if(null != dv)
+            return dv;
+
+        threadReads.get()[0]++;
+        dv = new DocumentVector(field);
+        dv = dv.getDocumentVector(luceneDocId, indexReader);
+        if(null == dv)
+            return null;
+        return insert(segment, luceneDocId, dv, estimateBytes(dv));
+    }
+
+    /**
+     * Returns the compact vector of the document with lucene-docid=luceneDocId; the
+     * term vector is read from the index only if the vector is not cached.
+     * @param luceneDocId The lucene doc id of the document
+     * @param vocabulary Vocabulary of the field, to map the terms to ids
+     * @return The compact document vector; null if term vectors were not indexed
+     * @throws IOException
+     */
+    public CompactDocumentVector getCompactDocumentVector(int luceneDocId, TermVocabulary vocabulary) throws IOException {
+
+        Segment<CompactDocumentVector> segment = compactSegments[luceneDocId % NUM_SEGMENTS];
+        CompactDocumentVector dv = lookup(segment, luceneDocId);
+        if(null != dv)
+            return dv;
+
+        threadReads.get()[0]++;
+        dv = CompactDocumentVector.getDocumentVector(luceneDocId, indexReader, field, vocabulary);
+        if(null == dv)
+            return null;
+        return insert(segment, luceneDocId, dv, 64 + 8L * dv.getNumTerms());
+    }
+
+    private <V> V lookup(Segment<V> segment, int luceneDocId) {
+
+        V dv;
+        synchronized(segment) {
+            dv = segment.map.get(luceneDocId);
+        }
+        if(null != dv)
+            hits.increment();
+        else
+            misses.increment();
+        return dv;
+    }
+
+    private <V> V insert(Segment<V> segment, int luceneDocId, V dv, long size) {
+
+        long segmentBudget = maxBytes / NUM_SEGMENTS;
+        synchronized(segment) {
+            V existing = segment.map.get(luceneDocId);
+            if(null != existing)    // loaded by another thread meanwhile
+                return existing;
+            segment.map.put(luceneDocId, dv);
+            segment.bytes.put(luceneDocId, size);
+            segment.totalBytes += size;
+            // evicting the least recently used vectors, but never the one just added
+            Iterator<Map.Entry<Integer, V>> it = segment.map.entrySet().iterator();
+            while(segment.totalBytes > segmentBudget && segment.map.size() > 1) {
+                Map.Entry<Integer, V> eldest = it.next();
+                segment.totalBytes -= segment.bytes.remove(eldest.getKey());
+                it.remove();
+                evictions.increment();
+            }
+        }
+        return dv;
+    }
+
+    /**
+     * Returns the approximate heap size of a document vector in bytes.
+     * @param dv The document vector
+     * @return Estimated size in bytes
+     */
+    private static long estimateBytes(DocumentVector dv) {
+
+        long size = 64;
+        for (String term : dv.docPerTermStat.keySet())
+            size += BYTES_PER_TERM + 2 * term.length();
+        return size;
+    }
+
+    /**
+     * Prints the hit, miss and eviction counts of the cache.
+     */
+    public void showCacheStat() {
+
+        long h = getHitCount(), m = getMissCount();
+        System.out.println("DocumentVectorCache (" + field + "): hits: " + h + " misses: " + m
+            + " evictions: " + getEvictionCount()
+            + " hit-ratio: " + ((h+m)>0 ? (float)h/(float)(h+m) : 0));
+    }
+}
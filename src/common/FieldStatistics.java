@@ -0,0 +1,117 @@
+package common;
+
+import java.io.IOException;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+
+/**
+ * Statistics of a field of an index, computed once per (IndexReader, field) and
+ * shared by all the users of the reader: <p>
+ * sumTotalTermFreq - total number of terms in the field (collection size) <p>
+ * docCount         - number of documents having at least one term in the field <p>
+ * maxDoc           - total number of documents in the index <p>
+ * uniqTermCount    - number of unique terms in the field <p>
+ * avgDocLength     - sumTotalTermFreq / docCount <p>
+ * A reopened reader is a different reader, hence gets its own statistics; the
+ * statistics of a reader are dropped when the reader is closed.
+ * @author dwaipayan
+ */
+
+public final class FieldStatistics {
+
+    /**
+     * All the statistics of the process.
+     */
+    static final private ReaderRegistry<FieldStatistics> registry = new ReaderRegistry<>();
+
+    private final IndexReader   indexReader;
+    private final String        field;
+    private final long          sumTotalTermFreq;
+    private final int           docCount;
+    private final int           maxDoc;
+    private final double        avgDocLength;
+    /**
+     * Number of unique terms; -1 till it is computed. The merged terms of a
+     * multi-segment index do not know their size, and counting needs a full
+     * walk of the term dictionary; hence it is computed on first use only.
+     */
+    private volatile long       uniqTermCount;
+
+    public String getField() {return field;}
+    public long getSumTotalTermFreq() {return sumTotalTermFreq;}
+    public int getDocCount() {return docCount;}
+    public int getMaxDoc() {return maxDoc;}
+    public double getAvgDocLength() {return avgDocLength;}
+
+    /**
+     * Returns the statistics of 'field' in 'indexReader'; computed on the first call
+     * for the reader and field.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The shared statistics of the field
+     * @throws IOException
+     */
+    public static FieldStatistics get(IndexReader indexReader, String field) throws IOException {
+        return registry.get(indexReader, field, new ReaderRegistry.Factory<FieldStatistics>() {
+            @Override
+            public FieldStatistics create(IndexReader indexReader, String field) throws IOException {
+                return new FieldStatistics(indexReader, field);
+            }
+        });
+    }
+
+    private FieldStatistics(IndexReader indexReader, String field) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+        maxDoc = indexReader.maxDoc();      // total number of documents in the index
+
+        Fields fields = MultiFields.getFields(indexReader);
+        Terms terms = (null == fields) ? null : fields.terms(field);
+        if(null == terms) {
+            System.err.println("Field: "+field);
+            System.err.println("Error FieldStatistics(): terms Null found");
+            sumTotalTermFreq = 0;
+            docCount = 0;
+            uniqTermCount = 0;
+        }
+        else {
+            sumTotalTermFreq = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
+            docCount = terms.getDocCount();
+            uniqTermCount = terms.size();                    // -1, for the merged terms of multiple segments
+        }
+        avgDocLength = (docCount > 0) ? (double)sumTotalTermFreq / (double)docCount : 0;
+    }
+
+    /**
+     * Returns the number of unique terms in the field.
+     * @return Unique term count
+     * @throws IOException
+     */
+    public long getUniqueTermCount() throws IOException {
+
+        if(uniqTermCount < 0) {
+            synchronized(this) {
+                if(uniqTermCount < 0) {
+                    // the terms of the segments, merged in order through a priority queue
+                    Terms terms = MultiFields.getFields(indexReader).terms(field);
+                    TermsEnum iterator = terms.iterator();
+                    long count = 0;
+                    while(iterator.next() != null)
+                        count++;
+                    uniqTermCount = count;
+                }
+            }
+        }
+        return uniqTermCount;
+    }
+
+    @Override
+    public String toString() {
+        return field + ": sumTotalTermFreq=" + sumTotalTermFreq + " docCount=" + docCount
+            + " maxDoc=" + maxDoc + " avgDocLength=" + avgDocLength;
+    }
+}
@@ -0,0 +1,105 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative int keys to int values, with linear
+ * probing. Meant to be reused: clear() keeps the allocated table.
+ * @author dwaipayan
+ */
+
+public class IntIntMap {
+
+    static final private int EMPTY = -1;
+
+    private int[]   keys;
+    private int[]   values;
+    private int     mask;
+    private int     size;
+
+    public IntIntMap() {
+        this(64);
+    }
+
+    /**
+     * @param expectedSize Number of keys expected, to size the table
+     */
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    public int size() {return size;}
+
+    /**
+     * Returns the value of the key; 'missing' if the key is not in the map.
+     * @param key Non-negative key
+     * @param missing Value to return for an absent key
+     * @return The value of the key
+     */
+    public int get(int key, int missing) {
+
+        int slot = mix(key) & mask;
+        int k;
+        while((k = keys[slot]) != EMPTY) {
+            if(k == key)
+                return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return missing;
+    }
+
+    /**
+     * Puts the key with the value, replacing the existing value (if any).
+     * @param key Non-negative key
+     * @param value The value
+     */
+    public void put(int key, int value) {
+
+        if((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+        int slot = mix(key) & mask;
+        int k;
+        while((k = keys[slot]) != EMPTY) {
+            if(k == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * Removes all the keys.
+     */
+    public void clear() {
+        if(size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    private void rehash(int capacity) {
+
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if(oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,94 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative long values (latencies in ns, or counts), with
+ * log-linear buckets: the values below 2^SUB_BITS have a bucket each, and every
+ * power of two above is split in 2^SUB_BITS buckets, so a percentile is within
+ * about 3% of the recorded value. <p>
+ * The buckets are allocated once; record() does not allocate. An instance is not
+ * thread-safe, and is meant to be recorded into by one thread.
+ * @author dwaipayan
+ */
+
+public class LatencyHistogram {
+
+    static final private int SUB_BITS = 5;
+    static final private int SUB_COUNT = 1 << SUB_BITS;
+
+    private final long[]    counts = new long[(64 - SUB_BITS + 1) * SUB_COUNT];
+    private long            count;
+    private long            sum;
+    private long            max;
+
+    /**
+     * Records a value; a negative value is recorded as 0.
+     * @param value The value
+     */
+    public void record(long value) {
+
+        if(value < 0)
+            value = 0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if(value > max)
+            max = value;
+    }
+
+    public long getCount() {return count;}
+    public long getMax() {return max;}
+    public long getSum() {return sum;}
+    public double getMean() {return (count > 0) ? (double)sum / (double)count : 0;}
+
+    /**
+     * Returns the value at the percentile: the largest value of the bucket in which
+     * the percentile falls (at most the largest value recorded).
+     * @param percentile The percentile, in (0, 100]
+     * @return The value at the percentile; 0 if nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        if(0 == count)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank)
+                return Math.min(highestValue(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+    }
+
+    private static int bucket(long value) {
+
+        if(value < SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);        // >= SUB_BITS
+        return (exp - SUB_BITS + 1) * SUB_COUNT + (int) ((value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Returns the largest value of the bucket.
+     */
+    private static long highestValue(int bucket) {
+
+        if(bucket < SUB_COUNT)
+            return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long low = (1L << exp) | (sub << (exp - SUB_BITS));
+        long width = 1L << (exp - SUB_BITS);
+        return (low > Long.MAX_VALUE - width) ? Long.MAX_VALUE : low + width - 1;
+    }
+}
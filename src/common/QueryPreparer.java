@@ -0,0 +1,250 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
+import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Turns the text of a topic into the lucene query, as StandardQueryParser does
+ * for a plain text, without the parser. <p>
+ * The characters that getAnalyzedQuery() blanks out are replaced in one pass
+ * over the text, by sanitize(). For a text with no query syntax left (no
+ * special character, and no AND, OR or NOT), the parser makes a disjunction of
+ * the analyzed words: each whitespace-separated word is analyzed on its own,
+ * and gives one SHOULD TermQuery clause (a single clause is the TermQuery
+ * itself). parse() builds that query directly; a text with any query syntax,
+ * a word analyzed into several tokens, or a text with no token at all is
+ * handed over to the parser, so that the result is always that of the parser. <p>
+ * The token streams are reused by the analyzer, per thread; an instance is meant
+ * to be used by one thread, as the TRECQueryParser that holds it.
+ * @author dwaipayan
+ */
+
+public class QueryPreparer {
+
+    /**
+     * Characters blanked out of the title, and of the description.
+     */
+    static final public String TITLE_BLANKS = "-/?\"&";
+    static final public String DESC_BLANKS = "-/:?\"&";
+
+    /**
+     * Characters with a meaning in the syntax of StandardQueryParser ('<', '>' and
+     * '=' make a range, or a field, of the words around them).
+     */
+    static final private String SYNTAX_CHARS = "+-&|!(){}[]^\"~*?:\\/<>=";
+
+    private final Analyzer              analyzer;
+    private final StandardQueryParser   queryParser;
+    private final List<String>          words = new ArrayList<>();     // reused by parse()
+    private final List<String>          terms = new ArrayList<>();
+
+    /**
+     * @param analyzer Analyzer of the query text
+     * @param queryParser Parser (with the same analyzer) for the texts with query syntax
+     */
+    public QueryPreparer(Analyzer analyzer, StandardQueryParser queryParser) {
+        this.analyzer = analyzer;
+        this.queryParser = queryParser;
+    }
+
+    /**
+     * Replaces each character of 'text' that is in 'blanks' with a space, as a chain of
+     * replaceAll() calls with these characters would.
+     * @param text The text
+     * @param blanks Characters to be replaced
+     * @return The sanitized text; 'text' itself if there is nothing to replace
+     */
+    public static String sanitize(String text, String blanks) {
+
+        int i = 0;
+        while(i < text.length() && blanks.indexOf(text.charAt(i)) < 0)
+            i++;
+        if(i == text.length())
+            return text;
+        char[] chars = text.toCharArray();
+        for (; i < chars.length; i++)
+            if(blanks.indexOf(chars[i]) >= 0)
+                chars[i] = ' ';
+        return new String(chars);
+    }
+
+    /**
+     * Returns the query of the (sanitized) text in 'field', equal to what
+     * StandardQueryParser.parse(text, field) returns.
+     * @param text The query text
+     * @param field The field to search
+     * @return The query
+     * @throws QueryNodeException
+     * @throws IOException
+     */
+    public Query parse(String text, String field) throws QueryNodeException, IOException {
+
+        if(!splitWords(text))
+            return queryParser.parse(text, field);
+
+        terms.clear();
+        for (String word : words) {
+            TokenStream stream = analyzer.tokenStream(field, word);
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            int numTokens = 0;
+            try {
+                stream.reset();
+                while(stream.incrementToken()) {
+                    if(++numTokens > 1)
+                        break;
+                    terms.add(termAtt.toString());
+                }
+                stream.end();
+            }
+            finally {
+                stream.close();
+            }
+            if(numTokens > 1)          // the parser makes a group of the tokens
+                return queryParser.parse(text, field);
+        }
+
+        if(terms.isEmpty())
+            return queryParser.parse(text, field);
+        if(1 == terms.size())
+            return new TermQuery(new Term(field, terms.get(0)));
+        BooleanQuery booleanQuery = new BooleanQuery();
+        for (String term : terms)
+            booleanQuery.add(new TermQuery(new Term(field, term)), BooleanClause.Occur.SHOULD);
+        return booleanQuery;
+    }
+
+    /**
+     * Splits the text into 'words' at the whitespace of the parser; returns false if
+     * the text has any query syntax.
+     */
+    private boolean splitWords(String text) {
+
+        words.clear();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = (i < text.length()) ? text.charAt(i) : ' ';
+            if(c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u3000') {
+                if(start >= 0) {
+                    String word = text.substring(start, i);
+                    if(word.equals("AND") || word.equals("OR") || word.equals("NOT"))
+                        return false;
+                    words.add(word);
+                    start = -1;
+                }
+            }
+            else if(SYNTAX_CHARS.indexOf(c) >= 0)
+                return false;
+            else if(start < 0)
+                start = i;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the terms of a query, as query.toString(field).split(" ") does.
+     * @param query The query of a topic
+     * @param field The field searched
+     * @return The terms of the query
+     */
+    public static String[] getQueryTerms(Query query, String field) {
+
+        if(query instanceof TermQuery) {
+            String[] queryTerms = {termText((TermQuery) query, field)};
+            if(null != queryTerms[0])
+                return queryTerms;
+        }
+        else if(query instanceof BooleanQuery && 1.0f == query.getBoost()
+            && 0 == ((BooleanQuery) query).getMinimumNumberShouldMatch()) {
+            List<BooleanClause> clauses = ((BooleanQuery) query).clauses();
+            String[] queryTerms = new String[clauses.size()];
+            for (int i = 0; i < queryTerms.length; i++) {
+                BooleanClause clause = clauses.get(i);
+                if(BooleanClause.Occur.SHOULD != clause.getOccur() || !(clause.getQuery() instanceof TermQuery)
+                    || null == (queryTerms[i] = termText((TermQuery) clause.getQuery(), field)))
+                    return query.toString(field).split(" ");
+            }
+            if(queryTerms.length > 0)
+                return queryTerms;
+        }
+        return query.toString(field).split(" ");
+    }
+
+    /**
+     * Texts checked by main(), besides those of the command line.
+     */
+    static final private String[] CHECK_TEXTS = {
+        "Accused Ajmal Kasab", "oil spill", "a", "the", "", "  ", "wi-fi hotspots",
+        "U.S. embassy bombings", "AND war", "war OR peace", "crime NOT punishment",
+        "income = tax", "oil > gas prices", "a < b war", "crime rate<5 cities",
+        "title:war", "war^2", "peace~", "wom?n", "(war)", "\u3000war\u3000peace"
+    };
+
+    /**
+     * Checks that parse() gives the query of StandardQueryParser, for the texts of
+     * CHECK_TEXTS and of the command line, sanitized as a title; exits with status 1
+     * on a difference.
+     * @param args The path of the stopword file, then the texts to check
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("usage: java common.QueryPreparer <stopword-file> [<query text> ...]");
+            System.exit(1);
+        }
+
+        Analyzer analyzer = new EnglishAnalyzerWithSmartStopword(args[0]).setAndGetEnglishAnalyzerWithSmartStopword();
+        StandardQueryParser queryParser = new StandardQueryParser(analyzer);
+        QueryPreparer queryPreparer = new QueryPreparer(analyzer, queryParser);
+        List<String> texts = new ArrayList<>();
+        for (String text : CHECK_TEXTS)
+            texts.add(text);
+        for (int i = 1; i < args.length; i++)
+            texts.add(args[i]);
+
+        int differences = 0;
+        for (String text : texts) {
+            text = sanitize(text, TITLE_BLANKS);
+            String expected, prepared;
+            try {
+                expected = queryParser.parse(text, "content").toString();
+            } catch (QueryNodeException ex) {
+                expected = ex.getClass().getSimpleName();
+            }
+            try {
+                prepared = queryPreparer.parse(text, "content").toString();
+            } catch (QueryNodeException ex) {
+                prepared = ex.getClass().getSimpleName();
+            }
+            if(!expected.equals(prepared)) {
+                differences++;
+                System.out.println("DIFFERS [" + text + "]: parser: " + expected + "; prepared: " + prepared);
+            }
+        }
+        System.out.println(texts.size() + " texts checked, " + differences + " differ");
+        if(differences > 0)
+            System.exit(1);
+    }
+
+    /**
+     * Returns the text of the term, if toString(field) is just that text; else null.
+     */
+    private static String termText(TermQuery termQuery, String field) {
+        Term term = termQuery.getTerm();
+        String text = term.text();
+        if(1.0f != termQuery.getBoost() || !term.field().equals(field) || text.isEmpty() || text.indexOf(' ') >= 0)
+            return null;
+        return text;
+    }
+}
@@ -0,0 +1,77 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Instances of a class shared by the process, one for each (IndexReader, field)
+ * pair. The instance of a pair is made on the first get(), under the lock of the
+ * registry; the instances of a reader are dropped when the reader is closed, so
+ * that a reopened reader gets its own.
+ * @param <T> The class of the instances
+ * @author dwaipayan
+ */
+
+public final class ReaderRegistry<T> {
+
+    /**
+     * Makes the instance of a (reader, field) pair.
+     * @param <T> The class of the instances
+     */
+    public interface Factory<T> {
+        T create(IndexReader indexReader, String field) throws IOException;
+    }
+
+    /**
+     * The instances, keyed by reader and then by field.
+     */
+    private final Map<IndexReader, Map<String, T>> instances = new HashMap<>();
+
+    /**
+     * Returns the instance of 'field' in 'indexReader'; made by 'factory' on the
+     * first call for the reader and field.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param factory Maker of the instance
+     * @return The shared instance for the reader and field
+     * @throws IOException
+     */
+    public synchronized T get(IndexReader indexReader, String field, Factory<T> factory) throws IOException {
+
+        Map<String, T> readerInstances = instances.get(indexReader);
+        if(null == readerInstances) {
+            readerInstances = new HashMap<>();
+            instances.put(indexReader, readerInstances);
+            indexReader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader reader) {
+                    remove(reader);
+                }
+            });
+        }
+        T instance = readerInstances.get(field);
+        if(null == instance) {
+            instance = factory.create(indexReader, field);
+            readerInstances.put(field, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the instance of 'field' in 'indexReader', if one was made.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The instance; null if get() was not called for the reader and field
+     */
+    public synchronized T peek(IndexReader indexReader, String field) {
+
+        Map<String, T> readerInstances = instances.get(indexReader);
+        return (null == readerInstances) ? null : readerInstances.get(field);
+    }
+
+    private synchronized void remove(IndexReader reader) {
+        instances.remove(reader);
+    }
+}
@@ -0,0 +1,178 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the scores of the documents matching a query, term by term, for
+ * term-at-a-time scoring. Along with the score, the number of terms that matched
+ * each document is kept, for the coord factor. <p>
+ * Up to 'denseMaxDoc' documents in the index, the scores are accumulated in arrays
+ * of maxDoc entries (8 bytes per document), and the touched documents are listed,
+ * so that reset() only clears these; for larger indexes, an open-addressing hash
+ * table of the touched documents is used instead. The accumulator is meant to be
+ * reused, one per thread; getDefaultDenseMaxDoc() bounds the arrays of all the
+ * threads to a share of the heap.
+ * @author dwaipayan
+ */
+
+public class ScoreAccumulator {
+
+    /**
+     * Bytes of the dense arrays per document of the index: the score and the count.
+     */
+    static final private int DENSE_BYTES_PER_DOC = 4 + 4;
+    /**
+     * Share of the maximum heap for the dense arrays of all the accumulators.
+     */
+    static final private int DENSE_HEAP_DIVISOR = 8;
+    static final private int EMPTY = -1;
+
+    private final int   denseMaxDoc;
+    private boolean     dense;
+    private int         size;               // number of documents touched
+
+    /* dense: indexed by doc id */
+    private float[]     scores = new float[0];
+    private int[]       counts = new int[0];
+    private int[]       touched = new int[1024];
+
+    /* sparse: keyed by doc id */
+    private int[]       keys;
+    private float[]     sparseScores;
+    private int[]       sparseCounts;
+    private int         mask;
+
+    /**
+     * Returns the largest index for which the dense arrays of 'numThreads'
+     * accumulators take at most an eighth of the maximum heap.
+     * @param numThreads Number of threads with an accumulator
+     * @return Largest maxDoc for the dense arrays
+     */
+    public static int getDefaultDenseMaxDoc(int numThreads) {
+        long bytes = Runtime.getRuntime().maxMemory() / DENSE_HEAP_DIVISOR / Math.max(1, numThreads);
+        return (int) Math.min(Integer.MAX_VALUE, bytes / DENSE_BYTES_PER_DOC);
+    }
+
+    /**
+     * @param denseMaxDoc Largest index (in maxDoc) for the dense arrays, of maxDoc entries
+     */
+    public ScoreAccumulator(int denseMaxDoc) {
+        this.denseMaxDoc = denseMaxDoc;
+    }
+
+    /**
+     * Clears the accumulator, for a query on an index of 'maxDoc' documents.
+     * @param maxDoc maxDoc() of the index
+     */
+    public void reset(int maxDoc) {
+
+        if(dense) {
+            for (int i = 0; i < size; i++) {
+                scores[touched[i]] = 0;
+                counts[touched[i]] = 0;
+            }
+        }
+        else if(null != keys && size > 0)
+            Arrays.fill(keys, EMPTY);
+        size = 0;
+
+        dense = maxDoc <= denseMaxDoc;
+        if(dense && scores.length < maxDoc) {
+            scores = new float[maxDoc];
+            counts = new int[maxDoc];
+        }
+        else if(!dense && null == keys)
+            allocate(1 << 16);
+    }
+
+    /**
+     * Returns the number of documents with a score.
+     * @return Number of documents touched since reset()
+     */
+    public int size() {return size;}
+
+    /**
+     * Adds the score of a matching term to the score of a document.
+     * @param docId The lucene doc id
+     * @param score The score of the term in the document
+     */
+    public void add(int docId, float score) {
+
+        if(dense) {
+            if(0 == counts[docId]++) {
+                if(size == touched.length)
+                    touched = Arrays.copyOf(touched, size * 2);
+                touched[size++] = docId;
+            }
+            scores[docId] += score;
+            return;
+        }
+
+        if((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+        int slot = mix(docId) & mask;
+        int k;
+        while((k = keys[slot]) != EMPTY) {
+            if(k == docId) {
+                sparseScores[slot] += score;
+                sparseCounts[slot]++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = docId;
+        sparseScores[slot] = score;
+        sparseCounts[slot] = 1;
+        size++;
+    }
+
+    /**
+     * Offers the documents to the selector, each with its score multiplied by the
+     * coord factor of its number of matching terms.
+     * @param selector Selector of the top documents
+     * @param coordFactors Coord factor, indexed by the number of matching terms
+     */
+    public void select(TopKSelector selector, float[] coordFactors) {
+
+        if(dense) {
+            for (int i = 0; i < size; i++) {
+                int docId = touched[i];
+                selector.offer(docId, scores[docId] * coordFactors[counts[docId]]);
+            }
+            return;
+        }
+        for (int slot = 0; slot < keys.length; slot++)
+            if(keys[slot] != EMPTY)
+                selector.offer(keys[slot], sparseScores[slot] * coordFactors[sparseCounts[slot]]);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        sparseScores = new float[capacity];
+        sparseCounts = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+
+        int[] oldKeys = keys, oldCounts = sparseCounts;
+        float[] oldScores = sparseScores;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == EMPTY)
+                continue;
+            int slot = mix(oldKeys[i]) & mask;
+            while(keys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            sparseScores[slot] = oldScores[i];
+            sparseCounts[slot] = oldCounts[i];
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,221 @@
+package common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds the table of the terms of a field, with their cf and df, from the
+ * segments of the index in parallel, on a fork-join pool. <p>
+ * The terms of each segment are read, in the order of the segment's term
+ * dictionary, into a table of UTF-8 bytes with packed cf/df columns; the tables
+ * of two halves of the segments are merged (summing cf and df of a term found in
+ * both), so that the final table is in the order of the merged term dictionary,
+ * with the cf and df MultiFields would give. No String is made.
+ * @author dwaipayan
+ */
+
+public class SegmentStatsBuilder {
+
+    /**
+     * Terms of a field, in the order of the term dictionary (unsigned bytes), with
+     * the cf and df of each term.
+     */
+    public static class TermTable {
+
+        byte[]      bytes;
+        int[]       offsets;        // start of each term in 'bytes'; offsets[size] is the end
+        long[]      cfs;
+        int[]       dfs;
+        int         size;
+
+        TermTable(int capacity, int byteCapacity) {
+            bytes = new byte[Math.max(16, byteCapacity)];
+            offsets = new int[Math.max(16, capacity) + 1];
+            cfs = new long[offsets.length - 1];
+            dfs = new int[offsets.length - 1];
+        }
+
+        public int size() {return size;}
+        public long getCF(int i) {return cfs[i];}
+        public int getDF(int i) {return dfs[i];}
+
+        /**
+         * Returns the term at 'i'; the bytes are shared with the table.
+         * @param i Index of the term
+         * @param scratch BytesRef to point at the term
+         * @return scratch
+         */
+        public BytesRef getTerm(int i, BytesRef scratch) {
+            scratch.bytes = bytes;
+            scratch.offset = offsets[i];
+            scratch.length = offsets[i + 1] - offsets[i];
+            return scratch;
+        }
+
+        /**
+         * Returns the term at 'i' as a String, decoded as in buildCollectionStat().
+         * @param i Index of the term
+         * @return The term
+         */
+        public String getString(int i) {
+            return new String(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+        }
+
+        private void add(byte[] termBytes, int offset, int length, long cf, int df) {
+
+            if(size + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+                cfs = Arrays.copyOf(cfs, offsets.length - 1);
+                dfs = Arrays.copyOf(dfs, offsets.length - 1);
+            }
+            int end = offsets[size];
+            if(end + length > bytes.length) {
+                if((long) end + length > Integer.MAX_VALUE - 8)
+                    throw new IllegalStateException("SegmentStatsBuilder: terms larger than 2GB");
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * bytes.length, end + length)));
+            }
+            System.arraycopy(termBytes, offset, bytes, end, length);
+            cfs[size] = cf;
+            dfs[size] = df;
+            offsets[++size] = end + length;
+        }
+    }
+
+    /**
+     * Returns the table of the terms of 'field' in 'indexReader'.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param pool Pool to read and merge the segments on
+     * @return The table of the terms
+     * @throws IOException
+     */
+    public static TermTable build(IndexReader indexReader, String field, ForkJoinPool pool) throws IOException {
+
+        List<LeafReaderContext> leaves = indexReader.leaves();
+        if(leaves.isEmpty())
+            return new TermTable(0, 0);
+        try {
+            return pool.invoke(new SegmentsTask(leaves, 0, leaves.size(), field));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Table of the segments [lo, hi): of the segment itself, or the merge of the
+     * tables of the two halves, computed in parallel.
+     */
+    private static class SegmentsTask extends RecursiveTask<TermTable> {
+
+        private static final long serialVersionUID = 1L;
+
+        final List<LeafReaderContext>   leaves;
+        final int       lo, hi;
+        final String    field;
+
+        SegmentsTask(List<LeafReaderContext> leaves, int lo, int hi, String field) {
+            this.leaves = leaves;
+            this.lo = lo;
+            this.hi = hi;
+            this.field = field;
+        }
+
+        @Override
+        protected TermTable compute() {
+
+            if(hi - lo == 1) {
+                try {
+                    return readSegment(leaves.get(lo), field);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            int mid = (lo + hi) >>> 1;
+            SegmentsTask left = new SegmentsTask(leaves, lo, mid, field);
+            left.fork();
+            TermTable right = new SegmentsTask(leaves, mid, hi, field).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    private static TermTable readSegment(LeafReaderContext leaf, String field) throws IOException {
+
+        Terms terms = leaf.reader().terms(field);
+        if(null == terms)
+            return new TermTable(0, 0);
+        long numTerms = terms.size();       // -1 if the codec does not store it
+        TermTable table = new TermTable((numTerms > 0 && numTerms < Integer.MAX_VALUE / 2) ? (int) numTerms : 1024,
+            (numTerms > 0 && numTerms < Integer.MAX_VALUE / 16) ? 8 * (int) numTerms : 8192);
+
+        TermsEnum iterator = terms.iterator();
+        BytesRef byteRef;
+        while((byteRef = iterator.next()) != null)
+            table.add(byteRef.bytes, byteRef.offset, byteRef.length, iterator.totalTermFreq(), iterator.docFreq());
+        return table;
+    }
+
+    /**
+     * Merges two tables in term order; the cf and df of a term in both are summed
+     * (cf is -1, as in MultiTermsEnum, if either of them is -1).
+     */
+    private static TermTable merge(TermTable a, TermTable b) {
+
+        if(0 == a.size)
+            return b;
+        if(0 == b.size)
+            return a;
+        TermTable merged = new TermTable(a.size + b.size,
+            (int) Math.min(Integer.MAX_VALUE - 8, (long) a.offsets[a.size] + b.offsets[b.size]));
+        int i = 0, j = 0;
+        while(i < a.size && j < b.size) {
+            int cmp = compare(a, i, b, j);
+            if(cmp < 0) {
+                copy(a, i++, merged);
+            }
+            else if(cmp > 0) {
+                copy(b, j++, merged);
+            }
+            else {
+                long cf = (a.cfs[i] == -1 || b.cfs[j] == -1) ? -1 : a.cfs[i] + b.cfs[j];
+                int df = a.dfs[i] + b.dfs[j];
+                merged.add(a.bytes, a.offsets[i], a.offsets[i + 1] - a.offsets[i], cf, df);
+                i++;
+                j++;
+            }
+        }
+        while(i < a.size)
+            copy(a, i++, merged);
+        while(j < b.size)
+            copy(b, j++, merged);
+        return merged;
+    }
+
+    private static void copy(TermTable from, int i, TermTable to) {
+        to.add(from.bytes, from.offsets[i], from.offsets[i + 1] - from.offsets[i], from.cfs[i], from.dfs[i]);
+    }
+
+    /**
+     * Compares term i of 'a' to term j of 'b', as BytesRef.compareTo().
+     */
+    private static int compare(TermTable a, int i, TermTable b, int j) {
+
+        int aStart = a.offsets[i], aLength = a.offsets[i + 1] - aStart;
+        int bStart = b.offsets[j], bLength = b.offsets[j + 1] - bStart;
+        int n = Math.min(aLength, bLength);
+        for (int k = 0; k < n; k++) {
+            int diff = (a.bytes[aStart + k] & 0xff) - (b.bytes[bStart + k] & 0xff);
+            if(diff != 0)
+                return diff;
+        }
+        return aLength - bLength;
+    }
+}
@@ -5,7 +5,6 @@
 package common;
 
 import static common.CommonVariables.FIELD_BOW;
-import java.io.StringReader;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -44,21 +43,36 @@ public class TRECQuery {
      */
     public String queryFieldAnalyze(Analyzer analyzer, String queryFieldText) throws Exception {
         fieldToSearch = FIELD_BOW;
-        StringBuffer localBuff = new StringBuffer(); 
+        StringBuilder localBuff = new StringBuilder(); 
 //        queryFieldText = queryFieldText.replace(".", "");
-        TokenStream stream = analyzer.tokenStream(fieldToSearch, new StringReader(queryFieldText));
+        // the analyzer reuses its token stream (and the reader of the text) per thread
+        TokenStream stream = analyzer.tokenStream(fieldToSearch, queryFieldText);
         CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
         stream.reset();
         while (stream.incrementToken()) {
-            String term = termAtt.toString();
-            term = term.toLowerCase();
-            localBuff.append(term).append(" ");
+            if(isLowerCaseAscii(termAtt))
+                localBuff.append(termAtt);
+            else
+                localBuff.append(termAtt.toString().toLowerCase());
+            localBuff.append(" ");
         }
         stream.end();
         stream.close();
         return localBuff.toString();
     }
 
+    /**
+     * Returns true if the term has no character other than lower case ASCII ones,
+     * i.e. if toLowerCase() would not change it (in any locale).
+     */
+    private static boolean isLowerCaseAscii(CharTermAttribute termAtt) {
+        char[] buffer = termAtt.buffer();
+        for (int i = 0; i < termAtt.length(); i++)
+            if(buffer[i] >= 0x80 || (buffer[i] >= 'A' && buffer[i] <= 'Z'))
+                return false;
+        return true;
+    }
+
     public Query getBOWQuery(Analyzer analyzer, TRECQuery query) throws Exception {
         fieldToSearch = FIELD_BOW;
         BooleanQuery q = new BooleanQuery();
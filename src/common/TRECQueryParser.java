@@ -24,6 +24,7 @@ public class TRECQueryParser extends DefaultHandler {
     TRECQuery           query;
     Analyzer            analyzer;
     StandardQueryParser queryParser;
+    QueryPreparer       queryPreparer;  // builds the query of a plain text without the parser
     String              fieldToSearch;  // field name of the index to be searched
     
     public List<TRECQuery>  queries;
@@ -57,6 +58,7 @@ public class TRECQueryParser extends DefaultHandler {
        buff = new StringBuffer();
        queries = new LinkedList<>();
        queryParser = new StandardQueryParser(this.analyzer);
+       queryPreparer = new QueryPreparer(this.analyzer, queryParser);
     }
 
     /**
@@ -73,6 +75,7 @@ public class TRECQueryParser extends DefaultHandler {
        buff = new StringBuffer();
        queries = new LinkedList<>();
        queryParser = new StandardQueryParser(this.analyzer);
+       queryPreparer = new QueryPreparer(this.analyzer, queryParser);
     }
 
     /**
@@ -120,14 +123,21 @@ public class TRECQueryParser extends DefaultHandler {
 
     @Override
     public void characters(char ch[], int start, int length) throws SAXException {
-        buff.append(new String(ch, start, length));
+        buff.append(ch, start, length);
     }
 
+    /**
+     * Returns the query of the title of the topic: '-', '/', '?', '"' and '&amp;' are
+     * blanked out ('-' in trecQuery.qtitle as well), and the text is analyzed
+     * as StandardQueryParser does, by the QueryPreparer.
+     * @param trecQuery The topic
+     * @return The lucene query of the title
+     * @throws Exception 
+     */
     public Query getAnalyzedQuery(TRECQuery trecQuery) throws Exception {
 
-        trecQuery.qtitle = trecQuery.qtitle.replaceAll("-", " ");
-        Query luceneQuery = queryParser.parse(trecQuery.qtitle.replaceAll("/", " ")
-            .replaceAll("\\?", " ").replaceAll("\"", " ").replaceAll("\\&", " "), fieldToSearch);
+        trecQuery.qtitle = QueryPreparer.sanitize(trecQuery.qtitle, "-");
+        Query luceneQuery = queryPreparer.parse(QueryPreparer.sanitize(trecQuery.qtitle, QueryPreparer.TITLE_BLANKS), fieldToSearch);
         trecQuery.luceneQuery = luceneQuery;
         
         return luceneQuery;
@@ -136,18 +146,16 @@ public class TRECQueryParser extends DefaultHandler {
     public Query getAnalyzedQuery(TRECQuery trecQuery, int queryFieldFlag) throws Exception {
 
         String queryString = "";
-        trecQuery.qtitle = trecQuery.qtitle.replaceAll("-", " ");
-        queryString = trecQuery.qtitle.replaceAll("/", " ")
-            .replaceAll("\\?", " ").replaceAll("\"", " ").replaceAll("\\&", " ");
+        trecQuery.qtitle = QueryPreparer.sanitize(trecQuery.qtitle, "-");
+        queryString = QueryPreparer.sanitize(trecQuery.qtitle, QueryPreparer.TITLE_BLANKS);
 
         if(queryFieldFlag == 2) {
-            trecQuery.qdesc = trecQuery.qdesc.replaceAll("-", " ");
+            trecQuery.qdesc = QueryPreparer.sanitize(trecQuery.qdesc, "-");
             queryString += " ";
-            queryString += trecQuery.qdesc.replaceAll("/", " ").replaceAll(":", " ")
-            .replaceAll("\\?", " ").replaceAll("\"", " ").replaceAll("\\&", " ");
+            queryString += QueryPreparer.sanitize(trecQuery.qdesc, QueryPreparer.DESC_BLANKS);
         }
 
-        Query luceneQuery = queryParser.parse(queryString, fieldToSearch);
+        Query luceneQuery = queryPreparer.parse(queryString, fieldToSearch);
         trecQuery.luceneQuery = luceneQuery;
 
         return luceneQuery;
@@ -165,9 +173,8 @@ public class TRECQueryParser extends DefaultHandler {
 
     public Query getAnalyzedQuery(TRECQuery trecQuery, String field) throws Exception {
 
-        trecQuery.qtitle = trecQuery.qtitle.replaceAll("-", " ");
-        Query luceneQuery = queryParser.parse(trecQuery.qtitle.replaceAll("/", " ")
-            .replaceAll("\\?", " ").replaceAll("\"", " ").replaceAll("\\&", " "), field);
+        trecQuery.qtitle = QueryPreparer.sanitize(trecQuery.qtitle, "-");
+        Query luceneQuery = queryPreparer.parse(QueryPreparer.sanitize(trecQuery.qtitle, QueryPreparer.TITLE_BLANKS), field);
         trecQuery.luceneQuery = luceneQuery;
 
         return luceneQuery;
@@ -0,0 +1,137 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Reads the rankings of a run file in the TREC format (qid Q0 docid rank score run,
+ * and any further columns, which are ignored) as the TopDocs of each query. <p>
+ * The file is streamed once, and only the top 'depth' documents of each query are
+ * kept, in a bounded heap: by score, and in the order of the file for equal scores
+ * (the rank column is not read). The docid of a line is mapped to its lucene doc id
+ * only if the line enters the heap, so that for a file in rank order, about 'depth'
+ * docids are looked up per query; the docids that are not in the index are skipped,
+ * and the next lines of the query take their place.
+ * @author dwaipayan
+ */
+
+public class TRECRunReader {
+
+    /**
+     * A line of the run, in the heap of its query.
+     */
+    private static class Entry {
+        final int   doc;
+        final float score;
+        final int   line;
+
+        Entry(int doc, float score, int line) {
+            this.doc = doc;
+            this.score = score;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Worst entry first: lowest score, then last line.
+     */
+    static final private Comparator<Entry> WORST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Float.compare(a.score, b.score);
+            return (0 != c) ? c : Integer.compare(b.line, a.line);
+        }
+    };
+
+    private static class Ranking {
+        final PriorityQueue<Entry>  heap = new PriorityQueue<>(11, WORST_FIRST);
+        int     lines;
+    }
+
+    /**
+     * Reads the run file.
+     * @param runPath Path of the run file
+     * @param depth Number of documents to keep per query; at least 1
+     * @param docIdLookup Lookup of the lucene doc ids of the docids
+     * @return The TopDocs of each query of the file that has a document in the index,
+     * with the number of lines of the query as totalHits
+     * @throws IOException
+     * @throws IllegalArgumentException If depth is less than 1
+     */
+    public static HashMap<String, TopDocs> read(String runPath, int depth, DocIdLookup docIdLookup) throws IOException {
+
+        if(depth < 1)
+            throw new IllegalArgumentException("initialRunDepth must be at least 1: " + depth);
+
+        long start = System.currentTimeMillis();
+        HashMap<String, Ranking> rankings = new HashMap<>();
+        int lineNumber = 0, malformed = 0, unresolved = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(runPath), StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] columns = line.trim().split("\\s+", 6);
+                if(columns.length < 5) {
+                    if(!line.trim().isEmpty())
+                        malformed++;
+                    continue;
+                }
+                float score;
+                try {
+                    score = Float.parseFloat(columns[4]);
+                } catch (NumberFormatException ex) {
+                    malformed++;
+                    continue;
+                }
+
+                Ranking ranking = rankings.get(columns[0]);
+                if(null == ranking) {
+                    ranking = new Ranking();
+                    rankings.put(columns[0], ranking);
+                }
+                ranking.lines++;
+                // a later line of equal score ranks below the ones kept
+                if(ranking.heap.size() >= depth && !(score > ranking.heap.peek().score))
+                    continue;
+                int luceneDocId = docIdLookup.getLuceneDocId(columns[2]);
+                if(luceneDocId < 0) {
+                    unresolved++;
+                    continue;
+                }
+                ranking.heap.add(new Entry(luceneDocId, score, lineNumber));
+                if(ranking.heap.size() > depth)
+                    ranking.heap.poll();
+            }
+        }
+
+        HashMap<String, TopDocs> topDocs = new HashMap<>();
+        for (Map.Entry<String, Ranking> entrySet : rankings.entrySet()) {
+            PriorityQueue<Entry> heap = entrySet.getValue().heap;
+            if(heap.isEmpty())
+                continue;
+            ScoreDoc[] scoreDocs = new ScoreDoc[heap.size()];
+            for (int i = scoreDocs.length - 1; i >= 0; i--) {
+                Entry entry = heap.poll();
+                scoreDocs[i] = new ScoreDoc(entry.doc, entry.score);
+            }
+            topDocs.put(entrySet.getKey(), new TopDocs(entrySet.getValue().lines, scoreDocs, scoreDocs[0].score));
+        }
+
+        System.out.println("TRECRunReader: " + topDocs.size() + " queries (top " + depth + ") read from " + runPath
+            + " in " + (System.currentTimeMillis() - start) + " ms"
+            + ((rankings.size() > topDocs.size()) ? "; " + (rankings.size() - topDocs.size()) + " queries with no document in the index" : "")
+            + ((unresolved > 0) ? "; " + unresolved + " docids not in the index" : "")
+            + ((malformed > 0) ? "; " + malformed + " malformed lines" : ""));
+        return topDocs;
+    } // ends read()
+}
@@ -0,0 +1,264 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a res file in TREC format through one FileChannel, kept open for the
+ * whole run. <p>
+ * The lines of each query are handed over to a background thread through a
+ * bounded queue; the thread encodes them into a buffer, and writes the buffer
+ * to the channel when it is full, or as the flush policy asks. A producer
+ * blocks when the queue is full. An I/O failure of the thread is thrown from
+ * the next write() or from close(). <p>
+ * The options are read from the 'res.*' properties:
+ * <ul>
+ * <li>res.docText: full (default), truncate or none: the 7th column with the
+ *     document text is written as it is, cut to res.docTextLength characters,
+ *     or dropped (the standard 6 column format);</li>
+ * <li>res.docTextLength: number of characters kept by truncate (default 256);</li>
+ * <li>res.flush: buffer (default), query or interval: the buffer is written when
+ *     it is full, also after each query, or also every res.flushIntervalMs ms;</li>
+ * <li>res.flushIntervalMs: interval of the interval policy (default 1000);</li>
+ * <li>res.bufferKB: size of the buffer (default 1024);</li>
+ * <li>res.queueSize: number of queries waiting to be written (default 64).</li>
+ * </ul>
+ * The text is encoded with the platform charset, as a FileWriter does.
+ * @author dwaipayan
+ */
+
+public class TRECRunWriter {
+
+    public enum DocText {FULL, TRUNCATE, NONE}
+    public enum FlushPolicy {BUFFER, QUERY, INTERVAL}
+
+    /**
+     * Queued by close(), to stop the writer thread.
+     */
+    static final private String END = new String();
+
+    final DocText       docText;
+    final int           docTextLength;
+    final FlushPolicy   flushPolicy;
+    final long          flushIntervalMs;
+
+    private final FileChannel           channel;
+    private final ByteBuffer            buffer;
+    private final CharsetEncoder        encoder;
+    private final BlockingQueue<String> queue;
+    private final Thread                writerThread;
+    private volatile IOException        failure;
+    private boolean                     closed;
+
+    private long    bytesWritten;
+    private long    numWrites;          // calls to FileChannel.write()
+
+    /**
+     * Creates (or truncates) the res file and starts the writer thread.
+     * @param resPath Path of the res file
+     * @param prop Properties with the res.* options
+     * @throws IOException
+     */
+    public TRECRunWriter(String resPath, Properties prop) throws IOException {
+
+        docText = DocText.valueOf(prop.getProperty("res.docText", "full").toUpperCase());
+        docTextLength = Integer.parseInt(prop.getProperty("res.docTextLength", "256"));
+        flushPolicy = FlushPolicy.valueOf(prop.getProperty("res.flush", "buffer").toUpperCase());
+        flushIntervalMs = Long.parseLong(prop.getProperty("res.flushIntervalMs", "1000"));
+
+        buffer = ByteBuffer.allocateDirect(Integer.parseInt(prop.getProperty("res.bufferKB", "1024")) << 10);
+        queue = new ArrayBlockingQueue<>(Integer.parseInt(prop.getProperty("res.queueSize", "64")));
+        encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        channel = FileChannel.open(Paths.get(resPath), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "res-writer");
+        writerThread.setDaemon(true);     // not holding the JVM if the run fails before close()
+        writerThread.start();
+    }
+
+    /**
+     * Returns true if the res lines carry the document text, i.e. the text
+     * has to be fetched for appendLine().
+     * @return false if res.docText is none
+     */
+    public boolean needsDocText() {return DocText.NONE != docText;}
+
+    /**
+     * Appends one res line, in TREC format, to 'out'; the 7th column is written
+     * as per res.docText.
+     * @param out Buffer of the lines of a query
+     * @param qid Query id
+     * @param docid Document id (FIELD_ID)
+     * @param rank Rank of the document
+     * @param score Retrieval score of the document
+     * @param runName Name of the run
+     * @param text Text of the document; ignored if res.docText is none
+     */
+    public void appendLine(StringBuilder out, String qid, String docid, int rank, float score,
+        String runName, String text) {
+
+        out.append(qid).append("\tQ0\t").
+        append(docid).append("\t").
+        append(rank).append("\t").
+        append(score).append("\t").
+        append(runName);
+        switch(docText) {
+            case FULL:
+                out.append("\t").append(text);
+                break;
+            case TRUNCATE:
+                out.append("\t");
+                if(null == text || text.length() <= docTextLength)
+                    out.append(text);
+                else {
+                    int end = docTextLength;
+                    if(end > 0 && Character.isHighSurrogate(text.charAt(end - 1)))
+                        end--;      // not splitting a surrogate pair
+                    out.append(text, 0, end);
+                }
+                break;
+            case NONE:
+                break;
+        }
+        out.append("\n");
+    }
+
+    /**
+     * Queues the res lines of one query to be written; blocks while the queue is full.
+     * @param result res file lines of a query
+     * @throws IOException If an earlier write has failed
+     */
+    public void write(String result) throws IOException {
+
+        checkFailure();
+        try {
+            queue.put(result);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing the result", ex);
+        }
+    }
+
+    /**
+     * Writes out all the queued results and closes the res file.
+     * @throws IOException If any of the writes has failed
+     */
+    public void close() throws IOException {
+
+        if(closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the res file", ex);
+        }
+        finally {
+            channel.close();
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if(null != failure)
+            throw new IOException("Error writing the res file", failure);
+    }
+
+    /**
+     * Body of the writer thread: takes the results off the queue until END.
+     * After a failure, the results are taken and dropped, so that the
+     * producers never block.
+     */
+    private void drain() {
+
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while(true) {
+                String result;
+                if(FlushPolicy.INTERVAL == flushPolicy) {
+                    long wait = Math.max(1, lastFlush + flushIntervalMs - System.currentTimeMillis());
+                    result = queue.poll(wait, TimeUnit.MILLISECONDS);
+                }
+                else
+                    result = queue.take();
+                if(END == result)
+                    break;
+
+                if(null == failure) {
+                    try {
+                        if(null != result)
+                            encode(result);
+                        long now = System.currentTimeMillis();
+                        if(FlushPolicy.QUERY == flushPolicy
+                            || (FlushPolicy.INTERVAL == flushPolicy && now - lastFlush >= flushIntervalMs)) {
+                            flush();
+                            lastFlush = now;
+                        }
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+            }
+            if(null == failure)
+                flush();
+        } catch (InterruptedException ex) {
+            failure = new IOException("res writer interrupted", ex);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+
+    private void encode(String result) throws IOException {
+
+        CharBuffer chars = CharBuffer.wrap(result);
+        encoder.reset();
+        while(encoder.encode(chars, buffer, true).isOverflow())
+            flush();
+        while(encoder.flush(buffer).isOverflow())
+            flush();
+    }
+
+    /**
+     * Writes the content of the buffer to the channel.
+     */
+    private void flush() throws IOException {
+
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+            numWrites++;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Prints the number of bytes written and the number of writes to the channel;
+     * to be called after close().
+     */
+    public void showWriteStat() {
+        System.out.println("TRECRunWriter: bytes: " + bytesWritten + " writes: " + numWrites
+            + " docText: " + docText.name().toLowerCase() + " flush: " + flushPolicy.name().toLowerCase());
+    }
+}
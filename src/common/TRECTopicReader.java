@@ -0,0 +1,142 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the topics of a query file (in the xml format of TRECQueryParser) one at
+ * a time, with a StAX parser, so that a topic can be processed as soon as it is
+ * read, and only the topic at hand is in memory. <p>
+ * The topics are the same as TRECQueryParser.queryFileParse() gives: the text of
+ * the file is accumulated in one reusable buffer, which is taken (trimmed) as the
+ * value of num, title, desc or narr at the end of that element, and cleared. <p>
+ * A parse error is thrown from hasNext() / next() as a RuntimeException.
+ * @author dwaipayan
+ */
+
+public class TRECTopicReader implements Iterator<TRECQuery>, Closeable {
+
+    private final InputStream       in;
+    private final XMLStreamReader   reader;
+    private char[]      buff = new char[1024];  // accumulation buffer of the text
+    private int         length;
+    private TRECQuery   query;                  // topic being read
+    private TRECQuery   next;                   // topic read and not yet returned
+    private boolean     done;
+
+    /**
+     * Opens the query file.
+     * @param queryFilePath Path of the query file
+     * @throws IOException
+     */
+    public TRECTopicReader(String queryFilePath) throws IOException {
+
+        in = new BufferedInputStream(new FileInputStream(queryFilePath));
+        try {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        } catch (XMLStreamException ex) {
+            in.close();
+            throw new IOException("Error opening the query file: " + queryFilePath, ex);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(null == next && !done)
+            next = readTopic();
+        return null != next;
+    }
+
+    @Override
+    public TRECQuery next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        TRECQuery topic = next;
+        next = null;
+        return topic;
+    }
+
+    /**
+     * Reads up to the end of the next topic.
+     * @return The topic; null at the end of the file
+     */
+    private TRECQuery readTopic() {
+
+        try {
+            while(reader.hasNext()) {
+                switch(reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if(reader.getLocalName().equalsIgnoreCase("top"))
+                            query = new TRECQuery();
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        String name = reader.getLocalName();
+                        if(name.equalsIgnoreCase("title"))
+                            query.qtitle = takeText();
+                        else if(name.equalsIgnoreCase("desc"))
+                            query.qdesc = takeText();
+                        else if(name.equalsIgnoreCase("num"))
+                            query.qid = takeText();
+                        else if(name.equalsIgnoreCase("narr"))
+                            query.qnarr = takeText();
+                        else if(name.equalsIgnoreCase("top"))
+                            return query;
+                        break;
+                }
+            }
+        } catch (XMLStreamException ex) {
+            throw new RuntimeException("Error parsing the query file", ex);
+        }
+        done = true;
+        return null;
+    }
+
+    private void append(char[] text, int start, int len) {
+        if(length + len > buff.length)
+            buff = Arrays.copyOf(buff, Math.max(buff.length * 2, length + len));
+        System.arraycopy(text, start, buff, length, len);
+        length += len;
+    }
+
+    /**
+     * Returns the accumulated text, trimmed as String.trim() does, and clears the buffer.
+     */
+    private String takeText() {
+        int start = 0, end = length;
+        while(start < end && buff[start] <= ' ')
+            start++;
+        while(end > start && buff[end - 1] <= ' ')
+            end--;
+        length = 0;
+        return new String(buff, start, end - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+        finally {
+            in.close();
+        }
+    }
+}
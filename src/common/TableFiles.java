@@ -0,0 +1,132 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Helpers of the tables built once per index commit and kept in files (the docid
+ * table, the statistics snapshot and the document length table): the path of the
+ * index, the names of the files, and their mapping. <p>
+ * A table is of one commit of the index, identified by the id that Lucene (since
+ * 5.0) writes in each commit point (segments_N): unlike the commit generation, it
+ * differs between any two commits, also when an index is deleted and rebuilt at the
+ * same path (which starts again at generation 1). The id is in the name of the file
+ * and in its header, and a table of another commit is never used.
+ * @author dwaipayan
+ */
+
+public final class TableFiles {
+
+    private TableFiles() {}
+
+    /**
+     * Returns the path of the index of the reader.
+     * @param indexReader The index reader
+     * @return The absolute path; null if the index is not in a file system directory
+     */
+    public static Path getIndexPath(IndexReader indexReader) {
+
+        if(!(indexReader instanceof DirectoryReader))
+            return null;
+        Directory dir = FilterDirectory.unwrap(((DirectoryReader) indexReader).directory());
+        if(!(dir instanceof FSDirectory))
+            return null;
+        return ((FSDirectory) dir).getDirectory().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Returns the prefix of the names of the files of an index: 'kind', the name of
+     * the index directory and the hash of its path.
+     * @param indexPath The path of the index
+     * @param kind The kind of the files
+     * @return The prefix, ending with '-'
+     */
+    public static String getIndexPrefix(Path indexPath, String kind) {
+        return kind + "-" + indexPath.getFileName() + "-" + Integer.toHexString(indexPath.toString().hashCode()) + "-";
+    }
+
+    /**
+     * Returns the id of the commit of the reader.
+     * @param indexReader The index reader
+     * @return The id, of StringHelper.ID_LENGTH bytes; null if the reader is not a
+     * DirectoryReader, or the index is older than Lucene 5.0
+     * @throws IOException
+     */
+    public static byte[] getCommitId(IndexReader indexReader) throws IOException {
+
+        if(!(indexReader instanceof DirectoryReader))
+            return null;
+        DirectoryReader directoryReader = (DirectoryReader) indexReader;
+        return SegmentInfos.readCommit(directoryReader.directory(),
+            directoryReader.getIndexCommit().getSegmentsFileName()).getId();
+    }
+
+    /**
+     * Returns the path of the table of a field of the commit, in 'tableDir'.
+     * @param indexReader The index reader
+     * @param tableDir Directory of the tables; null for none
+     * @param kind The kind of the table
+     * @param field The field
+     * @param commitId The id of the commit of the reader
+     * @return The path; null if there is no 'tableDir', the index is not in a file
+     * system directory, or the commit has no id
+     */
+    public static Path getTablePath(IndexReader indexReader, Path tableDir, String kind, String field, byte[] commitId) {
+
+        Path indexPath = getIndexPath(indexReader);
+        if(null == tableDir || null == indexPath || null == commitId)
+            return null;
+        return tableDir.resolve(getIndexPrefix(indexPath, kind) + field + "-" + StringHelper.idToString(commitId));
+    }
+
+    /**
+     * Writes the commit id in a table header.
+     * @param t The table
+     * @param position Position of the id in the header
+     * @param commitId The id; null for none (all zero bytes)
+     */
+    public static void putCommitId(ByteBuffer t, int position, byte[] commitId) {
+        for (int i = 0; i < StringHelper.ID_LENGTH; i++)
+            t.put(position + i, (null == commitId) ? 0 : commitId[i]);
+    }
+
+    /**
+     * Checks the commit id of a table header.
+     * @param t The table
+     * @param position Position of the id in the header
+     * @param commitId The id of the commit of the reader
+     * @return true if the table is of the commit
+     */
+    public static boolean isOfCommit(ByteBuffer t, int position, byte[] commitId) {
+
+        if(null == commitId || t.limit() < position + StringHelper.ID_LENGTH)
+            return false;
+        for (int i = 0; i < StringHelper.ID_LENGTH; i++)
+            if(t.get(position + i) != commitId[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Maps a file read-only.
+     * @param path The path of the file (of at most 2 GB)
+     * @return The mapped file
+     * @throws IOException
+     */
+    public static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package common;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Process-wide, thread-safe cache of collection statistics (cf, df, idf, norm_cf)
+ * of the terms of a field of an index. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. The entries are kept in a fixed number of segments, each of
+ * which is a bounded LRU map guarded by its own lock. If a CollectionStatsSnapshot
+ * of the field is open when the cache is made, the misses are read from it.
+ * @author dwaipayan
+ */
+
+public class TermStatsCache {
+
+    /**
+     * Default maximum number of terms cached per (reader, field).
+     */
+    static final public int DEFAULT_MAX_SIZE = 1 << 18;
+
+    static final private int NUM_SEGMENTS = 16;
+
+    static volatile private int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * All the caches of the process.
+     */
+    static final private ReaderRegistry<TermStatsCache> caches = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+    /**
+     * Total number of documents in the index.
+     */
+    long            docCount;
+    /**
+     * Total number of terms in the field of the index.
+     */
+    long            vocSize;
+    /**
+     * Snapshot of the statistics of the field, if one was open when the cache was
+     * made; the misses are then looked up in it instead of the term dictionary.
+     */
+    private final CollectionStatsSnapshot snapshot;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public long getHitCount() {return hits.sum();}
+    public long getMissCount() {return misses.sum();}
+
+    /**
+     * Sets the maximum number of terms to be cached per (reader, field).
+     * Affects the caches created after the call.
+     * @param size Maximum number of cached terms
+     */
+    public static synchronized void setMaxSize(int size) {
+        maxSize = size;
+    }
+
+    /**
+     * Returns the cache of the term statistics of 'field' in 'indexReader'.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The shared cache for the reader and field
+     * @throws IOException
+     */
+    public static TermStatsCache getInstance(IndexReader indexReader, String field) throws IOException {
+        return caches.get(indexReader, field, new ReaderRegistry.Factory<TermStatsCache>() {
+            @Override
+            public TermStatsCache create(IndexReader indexReader, String field) throws IOException {
+                return new TermStatsCache(indexReader, field, maxSize);
+            }
+        });
+    }
+
+    /**
+     * One LRU map of the cache, of at most maxSize terms.
+     */
+    private static class Segment extends LinkedHashMap<String, PerTermStat> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PerTermStat> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private TermStatsCache(IndexReader indexReader, String field, int maxSize) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+        FieldStatistics fieldStats = FieldStatistics.get(indexReader, field);
+        docCount = fieldStats.getMaxDoc();              // total number of documents in the index
+        vocSize = fieldStats.getSumTotalTermFreq();     // total number of terms in the index in that field
+        snapshot = CollectionStatsSnapshot.get(indexReader, field);
+
+        int segmentSize = Math.max(1, maxSize / NUM_SEGMENTS);
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    /**
+     * Returns the collection statistics of 'term'; looks up the term dictionary
+     * of the index only if the term is not already cached.<p>
+     * The returned PerTermStat is shared, and must not be modified.
+     * @param term The term
+     * @return PerTermStat with cf, df, idf and norm_cf of the term
+     * @throws IOException
+     */
+    public PerTermStat getTermStat(String term) throws IOException {
+
+        Segment segment = segments[(term.hashCode() & 0x7fffffff) % NUM_SEGMENTS];
+        PerTermStat pts;
+        synchronized(segment) {
+            pts = segment.get(term);
+        }
+        if(null != pts) {
+            hits.increment();
+            return pts;
+        }
+
+        misses.increment();
+        long cf, df;
+        if(null != snapshot) {
+            int ord = snapshot.getOrd(new BytesRef(term));
+            cf = (ord < 0) ? 0 : snapshot.getCF(ord);
+            df = (ord < 0) ? 0 : snapshot.getDF(ord);
+        }
+        else {
+            Term termInstance = new Term(field, term);
+            cf = indexReader.totalTermFreq(termInstance);   // CF: total number of occurrences of term across all documents
+            df = indexReader.docFreq(termInstance);         // DF: number of documents containing the term
+        }
+        // idf = log(#docCount / (df+1) )
+        double idf = Math.log((float)(docCount)/(float)(df+1));
+        float norm_cf = (float)cf / (float)vocSize;
+        pts = new PerTermStat(term, cf, df, idf, norm_cf);
+
+        synchronized(segment) {
+            segment.put(term, pts);
+        }
+        return pts;
+    }
+}
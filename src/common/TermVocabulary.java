@@ -0,0 +1,158 @@
+package common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Process-wide mapping of the terms of a field of an index to dense int ids,
+ * along with the collection frequency and document frequency of each term. <p>
+ * One instance exists for each (IndexReader, field) pair; it is dropped when the
+ * reader is closed. An id is assigned to a term the first time the term is seen,
+ * and the term dictionary is looked up only at that time. Lookups with the BytesRef
+ * of a TermsEnum do not allocate; the vocabulary grows with the number of distinct
+ * terms seen, and is never evicted.
+ * @author dwaipayan
+ */
+
+public class TermVocabulary {
+
+    /**
+     * Returned by the lookups for a term that is not in the vocabulary.
+     */
+    static final public int NO_TERM = -1;
+
+    /**
+     * All the vocabularies of the process.
+     */
+    static final private ReaderRegistry<TermVocabulary> vocabularies = new ReaderRegistry<>();
+
+    IndexReader     indexReader;
+    String          field;
+
+    private final ConcurrentHashMap<BytesRef, Integer> termIds = new ConcurrentHashMap<>();
+    /**
+     * Per-id columns; replaced by larger copies on growth, and published only after
+     * the new entry is written.
+     */
+    private volatile String[]   terms = new String[1024];
+    private volatile long[]     cfs = new long[1024];
+    private volatile long[]     dfs = new long[1024];
+    private int                 size;
+    /**
+     * Snapshot of the statistics of the field, if one was open when the vocabulary
+     * was made; cf and df of the new terms are then read from it.
+     */
+    private final CollectionStatsSnapshot snapshot;
+
+    /**
+     * Returns the vocabulary of 'field' in 'indexReader'.
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The shared vocabulary for the reader and field
+     */
+    public static TermVocabulary getInstance(IndexReader indexReader, String field) throws IOException {
+        return vocabularies.get(indexReader, field, new ReaderRegistry.Factory<TermVocabulary>() {
+            @Override
+            public TermVocabulary create(IndexReader indexReader, String field) throws IOException {
+                return new TermVocabulary(indexReader, field);
+            }
+        });
+    }
+
+    private TermVocabulary(IndexReader indexReader, String field) {
+        this.indexReader = indexReader;
+        this.field = field;
+        snapshot = CollectionStatsSnapshot.get(indexReader, field);
+    }
+
+    /**
+     * Returns the id of the term; the term is added to the vocabulary if it is not
+     * already there. The BytesRef is copied only when the term is added.
+     * @param byteRef UTF-8 bytes of the term
+     * @return The id of the term
+     * @throws IOException
+     */
+    public int getOrAddId(BytesRef byteRef) throws IOException {
+
+        Integer id = termIds.get(byteRef);
+        if(null != id)
+            return id;
+        return addTerm(BytesRef.deepCopyOf(byteRef));
+    }
+
+    /**
+     * Returns the id of the term; NO_TERM if the term is not in the vocabulary.
+     * @param term The term
+     * @return The id of the term, or NO_TERM
+     */
+    public int getId(String term) {
+
+        Integer id = termIds.get(new BytesRef(term));
+        return (null == id) ? NO_TERM : id;
+    }
+
+    private synchronized int addTerm(BytesRef byteRef) throws IOException {
+
+        Integer existing = termIds.get(byteRef);
+        if(null != existing)
+            return existing;
+
+        long cf, df;
+        if(null != snapshot) {
+            int ord = snapshot.getOrd(byteRef);
+            cf = (ord < 0) ? 0 : snapshot.getCF(ord);
+            df = (ord < 0) ? 0 : snapshot.getDF(ord);
+        }
+        else {
+            Term termInstance = new Term(field, byteRef);
+            cf = indexReader.totalTermFreq(termInstance);   // CF: total number of occurrences of term across all documents
+            df = indexReader.docFreq(termInstance);         // DF: number of documents containing the term
+        }
+
+        int id = size;
+        String[] newTerms = terms;
+        long[] newCfs = cfs, newDfs = dfs;
+        if(id == newTerms.length) {
+            newTerms = Arrays.copyOf(newTerms, id * 2);
+            newCfs = Arrays.copyOf(newCfs, id * 2);
+            newDfs = Arrays.copyOf(newDfs, id * 2);
+        }
+        newTerms[id] = new String(byteRef.bytes, byteRef.offset, byteRef.length);
+        newCfs[id] = cf;
+        newDfs[id] = df;
+        terms = newTerms;
+        cfs = newCfs;
+        dfs = newDfs;
+        size++;
+        termIds.put(byteRef, id);
+
+        return id;
+    }
+
+    /**
+     * Returns the term with the id.
+     * @param termId Id of the term
+     * @return The term
+     */
+    public String getTerm(int termId) {return terms[termId];}
+
+    /**
+     * Returns the collection frequency of the term with the id.
+     * @param termId Id of the term
+     * @return cf of the term in the field
+     */
+    public long getCF(int termId) {return cfs[termId];}
+
+    /**
+     * Returns the document frequency of the term with the id.
+     * @param termId Id of the term
+     * @return df of the term in the field
+     */
+    public long getDF(int termId) {return dfs[termId];}
+
+    public synchronized int size() {return size;}
+}
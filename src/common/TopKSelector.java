@@ -0,0 +1,134 @@
+package common;
+
+/**
+ * Selects the k entries with the highest scores out of a stream of (id, score)
+ * pairs, in O(n log k) time and O(k) space, with no boxing. <p>
+ * Entries with equal scores are ordered by id, the smaller id first; when the ids
+ * are the positions of the entries in a list, the selection is the same as taking
+ * the first k entries of the list after a stable sort in non-increasing order of score. <p>
+ * The selector can be reused after drain().
+ * @author dwaipayan
+ */
+
+public class TopKSelector {
+
+    private int     k;
+    /**
+     * Min-heap on (score, -id): the root is the worst of the selected entries.
+     */
+    private int[]   ids;
+    private float[] scores;
+    private int     size;
+
+    /**
+     * @param k Number of entries to select
+     */
+    public TopKSelector(int k) {
+        ids = new int[Math.max(k, 1)];
+        scores = new float[Math.max(k, 1)];
+        this.k = k;
+    }
+
+    /**
+     * Clears the selector, to select 'k' entries next.
+     * @param k Number of entries to select
+     */
+    public void reset(int k) {
+        if(k > ids.length) {
+            ids = new int[k];
+            scores = new float[k];
+        }
+        this.k = k;
+        size = 0;
+    }
+
+    public int size() {return size;}
+
+    /**
+     * Returns the score of the worst selected entry; an entry with a lower score
+     * (or with the same score and a larger id) is not selected while size() is k.
+     * @return Lowest score among the selected entries; undefined when none is selected
+     */
+    public float minScore() {return scores[0];}
+
+    /**
+     * Offers an entry to the selector.
+     * @param id Id of the entry
+     * @param score Score of the entry
+     */
+    public void offer(int id, float score) {
+
+        if(size < k) {
+            // sift up
+            int i = size++;
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(!worse(score, id, scores[parent], ids[parent]))
+                    break;
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+        else if(k > 0 && worse(scores[0], ids[0], score, id)) {
+            // replaces the worst selected entry; sift down
+            siftDown(id, score);
+        }
+    }
+
+    /**
+     * Returns the ids of the selected entries, the best first, and clears the selector.
+     * @return Ids of the selected entries in non-increasing order of score
+     */
+    public int[] drain() {
+        return drain(null);
+    }
+
+    /**
+     * Returns the ids of the selected entries, the best first, and clears the selector;
+     * the scores of the entries are put in 'sortedScores', in the same order.
+     * @param sortedScores Array of at least size() elements to hold the scores; may be null
+     * @return Ids of the selected entries in non-increasing order of score
+     */
+    public int[] drain(float[] sortedScores) {
+
+        int[] sorted = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            sorted[i] = ids[0];
+            if(null != sortedScores)
+                sortedScores[i] = scores[0];
+            size--;
+            if(size > 0)
+                siftDown(ids[size], scores[size]);
+        }
+        return sorted;
+    }
+
+    private void siftDown(int id, float score) {
+
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && worse(scores[child + 1], ids[child + 1], scores[child], ids[child]))
+                child++;
+            if(!worse(scores[child], ids[child], score, id))
+                break;
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    /**
+     * Returns true if entry a ranks below entry b.
+     */
+    private static boolean worse(float scoreA, int idA, float scoreB, int idB) {
+        return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+    }
+}
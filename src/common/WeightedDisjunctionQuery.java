@@ -0,0 +1,396 @@
+package common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.LMSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A disjunction of boosted term queries (as the expanded queries are), with a
+ * top-k search that skips the documents that cannot make it to the top k. <p>
+ * The score of a term in any document is bounded from the statistics of the term,
+ * for the similarities with a closed form bound: <ul>
+ * <li>BM25: boost * idf * (k1 + 1);</li>
+ * <li>LM Jelinek-Mercer: boost * log(1 + (1 - lambda) / (lambda * P(t|C)));</li>
+ * <li>LM Dirichlet: boost * log(1 / P(t|C)).</li>
+ * </ul>
+ * search() is a document-at-a-time MaxScore traversal: the terms are ordered by
+ * their bounds, and the terms whose bounds sum up to no more than the k-th best
+ * score so far are non-essential; a document is only reached through the postings
+ * of the essential terms, and the postings of the non-essential terms are advanced
+ * to it only as long as the document can still beat the k-th score. <p>
+ * The scores are those of the BooleanQuery of the terms (for these similarities,
+ * coord and queryNorm are 1) up to float rounding, as the term scores of a document
+ * are summed in the order of the clauses; documents of equal score may be ranked in
+ * another order. With any other similarity,
+ * search() runs the BooleanQuery, to which the query also rewrites.
+ * @author dwaipayan
+ */
+
+public class WeightedDisjunctionQuery extends Query {
+
+    /**
+     * Relative margin on the bounds, for the rounding of the float scores.
+     */
+    static final private double SLACK = 1e-3;
+
+    private final Term[]    terms;
+    private final float[]   boosts;
+
+    /**
+     * @param booleanQuery A disjunction of TermQuery clauses, all SHOULD
+     * @throws IllegalArgumentException If the query has any other clause
+     */
+    public WeightedDisjunctionQuery(BooleanQuery booleanQuery) {
+
+        if(booleanQuery.getMinimumNumberShouldMatch() > 0)
+            throw new IllegalArgumentException("minimumNumberShouldMatch not supported: " + booleanQuery);
+        List<BooleanClause> clauses = booleanQuery.clauses();
+        terms = new Term[clauses.size()];
+        boosts = new float[clauses.size()];
+        for (int i = 0; i < terms.length; i++) {
+            BooleanClause clause = clauses.get(i);
+            if(BooleanClause.Occur.SHOULD != clause.getOccur() || !(clause.getQuery() instanceof TermQuery))
+                throw new IllegalArgumentException("not a disjunction of term queries: " + clause);
+            terms[i] = ((TermQuery) clause.getQuery()).getTerm();
+            boosts[i] = clause.getQuery().getBoost() * booleanQuery.getBoost();
+        }
+    }
+
+    /**
+     * Returns true if the term scores of the similarity can be bounded, i.e. if
+     * search() skips documents with it.
+     * @param similarity The similarity of the searcher
+     * @return true for BM25, LM Jelinek-Mercer and LM Dirichlet (with the default collection model)
+     */
+    public static boolean supports(Similarity similarity) {
+
+        Class<?> c = similarity.getClass();
+        if(BM25Similarity.class == c) {
+            BM25Similarity bm25 = (BM25Similarity) similarity;
+            return bm25.getK1() >= 0 && bm25.getB() >= 0 && bm25.getB() <= 1;
+        }
+        if(LMJelinekMercerSimilarity.class == c || LMDirichletSimilarity.class == c) {
+            LMSimilarity lm = (LMSimilarity) similarity;
+            // a custom collection model is named in toString()
+            if(!lm.toString().equals("LM " + lm.getName()))
+                return false;
+            return (LMJelinekMercerSimilarity.class == c)
+                ? ((LMJelinekMercerSimilarity) lm).getLambda() > 0
+                : ((LMDirichletSimilarity) lm).getMu() > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the bound of the score of a term in any document.
+     */
+    private static double maxScore(Similarity similarity, float boost,
+        CollectionStatistics collectionStats, TermStatistics termStats) {
+
+        if(boost <= 0)
+            return 0;
+        if(similarity instanceof BM25Similarity) {
+            double docFreq = termStats.docFreq();
+            double idf = Math.log(1 + (collectionStats.maxDoc() - docFreq + 0.5) / (docFreq + 0.5));
+            return boost * idf * (((BM25Similarity) similarity).getK1() + 1);
+        }
+
+        if(termStats.totalTermFreq() < 0 || collectionStats.sumTotalTermFreq() < 0)
+            return Double.POSITIVE_INFINITY;    // no frequencies: the term is never skipped
+        double collectionProbability = (termStats.totalTermFreq() + 1.0) / (collectionStats.sumTotalTermFreq() + 1.0);
+        if(similarity instanceof LMJelinekMercerSimilarity) {
+            double lambda = ((LMJelinekMercerSimilarity) similarity).getLambda();
+            return boost * Math.log(1 + (1 - lambda) / (lambda * collectionProbability));
+        }
+        // Dirichlet: log(1 + tf/(mu*p)) + log(mu/(len+mu)) is the largest with tf = len, and then < log(1/p)
+        return boost * Math.max(0, -Math.log(collectionProbability));
+    }
+
+    /**
+     * Returns the top 'numHits' documents for the query, in non-increasing order of
+     * score, the smaller doc id first among equal scores (as TopScoreDocCollector).
+     * TopDocs.totalHits is the number of documents that were fully scored.
+     * @param searcher The searcher
+     * @param numHits Number of documents to retrieve
+     * @return The top documents
+     * @throws IOException
+     */
+    public TopDocs search(IndexSearcher searcher, int numHits) throws IOException {
+
+        Similarity similarity = searcher.getSimilarity(true);
+        if(!supports(similarity) || numHits <= 0)
+            return searcher.search(toBooleanQuery(), numHits);
+
+        IndexReaderContext topContext = searcher.getTopReaderContext();
+        Weight[] weights = new Weight[terms.length];
+        final double[] maxScores = new double[terms.length];
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            TermContext termContext = TermContext.build(topContext, terms[i]);
+            TermQuery termQuery = new TermQuery(terms[i], termContext);
+            termQuery.setBoost(boosts[i] * getBoost());
+            weights[i] = searcher.createNormalizedWeight(termQuery, true);
+            maxScores[i] = maxScore(similarity, termQuery.getBoost(), searcher.collectionStatistics(terms[i].field()),
+                searcher.termStatistics(terms[i], termContext));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(maxScores[a], maxScores[b]);
+            }
+        });
+
+        TopHits topHits = new TopHits(numHits);
+        for (LeafReaderContext context : topContext.leaves())
+            searchLeaf(context, weights, maxScores, order, topHits);
+
+        float[] scores = new float[topHits.selector.size()];
+        int[] docs = topHits.selector.drain(scores);
+        ScoreDoc[] scoreDocs = new ScoreDoc[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            scoreDocs[i] = new ScoreDoc(docs[i], scores[i]);
+        return new TopDocs(topHits.numScored, scoreDocs, (scoreDocs.length > 0) ? scoreDocs[0].score : Float.NaN);
+    }
+
+    /**
+     * The documents selected so far, and the score a document has to beat to be selected.
+     */
+    private static class TopHits {
+
+        final TopKSelector  selector;
+        final int           numHits;
+        double              cutoff = Double.NEGATIVE_INFINITY;  // the k-th score, less the slack
+        int                 numScored;
+
+        TopHits(int numHits) {
+            this.selector = new TopKSelector(numHits);
+            this.numHits = numHits;
+        }
+
+        /**
+         * Offers a document; returns true if the cutoff has gone up.
+         */
+        boolean collect(int docId, float score) {
+            numScored++;
+            selector.offer(docId, score);
+            if(selector.size() < numHits)
+                return false;
+            double threshold = selector.minScore();
+            double newCutoff = threshold - SLACK * Math.abs(threshold);
+            if(newCutoff <= cutoff)
+                return false;
+            cutoff = newCutoff;
+            return true;
+        }
+    }
+
+    /**
+     * MaxScore traversal of one segment.
+     * @param order The clauses in increasing order of their bounds
+     */
+    private void searchLeaf(LeafReaderContext context, Weight[] weights, double[] maxScores,
+        Integer[] order, TopHits topHits) throws IOException {
+
+        /* the scorers of the terms present in the segment, in increasing order of the
+           bounds, each on its first document; a scorer with no document is left out */
+        Scorer[] scorers = new Scorer[order.length];
+        int[] clauses = new int[order.length];
+        int m = 0;
+        for (int i : order) {
+            Scorer scorer = weights[i].scorer(context);
+            if(null != scorer && DocIdSetIterator.NO_MORE_DOCS != scorer.nextDoc()) {
+                scorers[m] = scorer;
+                clauses[m++] = i;
+            }
+        }
+        if(0 == m)
+            return;
+        /* bounds[j]: sum of the bounds of scorers[0, j) */
+        double[] bounds = new double[m + 1];
+        for (int j = 0; j < m; j++)
+            bounds[j + 1] = bounds[j] + maxScores[clauses[j]];
+
+        Bits liveDocs = context.reader().getLiveDocs();
+        float[] termScores = new float[weights.length];
+        int[] matched = new int[m];
+        int numNonEssential = numNonEssential(bounds, 0, topHits.cutoff);
+        ScorerQueue essential = new ScorerQueue(scorers, numNonEssential, m);
+
+        while(true) {
+            int doc = essential.topDoc();
+            if(DocIdSetIterator.NO_MORE_DOCS == doc)
+                break;
+
+            /* the essential terms of the document; their scorers are moved on */
+            int numMatched = 0;
+            double partial = 0;
+            do {
+                int j = essential.top();
+                float score = scorers[j].score();
+                termScores[clauses[j]] = score;
+                matched[numMatched++] = clauses[j];
+                partial += score;
+                scorers[j].nextDoc();
+                essential.updateTop();
+            } while(essential.topDoc() == doc);
+            if(null != liveDocs && !liveDocs.get(doc))
+                continue;
+
+            /* the non-essential terms, the largest bound first, while the document can make it */
+            boolean competitive = true;
+            for (int j = numNonEssential - 1; j >= 0; j--) {
+                if(partial + bounds[j + 1] <= topHits.cutoff) {
+                    competitive = false;
+                    break;
+                }
+                int d = scorers[j].docID();
+                if(d < doc)
+                    d = scorers[j].advance(doc);
+                if(d == doc) {
+                    float score = scorers[j].score();
+                    termScores[clauses[j]] = score;
+                    matched[numMatched++] = clauses[j];
+                    partial += score;
+                }
+            }
+            if(!competitive)
+                continue;
+
+            Arrays.sort(matched, 0, numMatched);
+            float score = 0;
+            for (int k = 0; k < numMatched; k++)
+                score += termScores[matched[k]];
+
+            if(topHits.collect(context.docBase + doc, score)) {
+                int n = numNonEssential(bounds, numNonEssential, topHits.cutoff);
+                if(n > numNonEssential) {
+                    numNonEssential = n;
+                    essential = new ScorerQueue(scorers, numNonEssential, m);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the largest n (not less than 'from') such that the bounds of the first n
+     * scorers sum up to no more than the cutoff.
+     */
+    private static int numNonEssential(double[] bounds, int from, double cutoff) {
+        int n = from;
+        while(n + 1 < bounds.length && bounds[n + 1] <= cutoff)
+            n++;
+        return n;
+    }
+
+    /**
+     * Min-heap of the scorers [from, to) on their current doc ids.
+     */
+    private static class ScorerQueue {
+
+        final Scorer[]  scorers;
+        final int[]     heap;           // indices into scorers
+        final int       size;
+
+        ScorerQueue(Scorer[] scorers, int from, int to) {
+            this.scorers = scorers;
+            this.size = to - from;
+            heap = new int[size];
+            for (int i = 0; i < size; i++)
+                heap[i] = from + i;
+            for (int i = size / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        }
+
+        int top() {return heap[0];}
+
+        int topDoc() {
+            return (0 == size) ? DocIdSetIterator.NO_MORE_DOCS : scorers[heap[0]].docID();
+        }
+
+        /**
+         * Restores the order after the doc id of the top scorer has changed.
+         */
+        void updateTop() {siftDown(0);}
+
+        private void siftDown(int i) {
+            int node = heap[i];
+            int doc = scorers[node].docID();
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= size)
+                    break;
+                if(child + 1 < size && scorers[heap[child + 1]].docID() < scorers[heap[child]].docID())
+                    child++;
+                if(scorers[heap[child]].docID() >= doc)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = node;
+        }
+    }
+
+    /**
+     * Returns the BooleanQuery of the terms, as built by the expansion.
+     * @return The disjunction of the boosted TermQuery clauses
+     */
+    public BooleanQuery toBooleanQuery() {
+
+        BooleanQuery booleanQuery = new BooleanQuery();
+        for (int i = 0; i < terms.length; i++) {
+            TermQuery termQuery = new TermQuery(terms[i]);
+            termQuery.setBoost(boosts[i]);
+            booleanQuery.add(termQuery, BooleanClause.Occur.SHOULD);
+        }
+        booleanQuery.setBoost(getBoost());
+        return booleanQuery;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        return toBooleanQuery();
+    }
+
+    @Override
+    public String toString(String field) {
+        return toBooleanQuery().toString(field);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(!super.equals(obj))
+            return false;
+        WeightedDisjunctionQuery other = (WeightedDisjunctionQuery) obj;
+        return Arrays.equals(terms, other.terms) && Arrays.equals(boosts, other.boosts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + Arrays.hashCode(terms)) + Arrays.hashCode(boosts);
+    }
+}